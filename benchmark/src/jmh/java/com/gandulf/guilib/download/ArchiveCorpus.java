@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generated archives covering the shapes of packages we ship. The content is derived from a fixed seed, so every run
+ * measures the same bytes.
+ */
+public enum ArchiveCorpus {
+
+	/**
+	 * Many tiny compressible files in a few folders.
+	 */
+	TINY_FILES(20000, 512, 4096, ZipEntry.DEFLATED, 1.0, 1),
+	/**
+	 * A few huge files, partly compressible.
+	 */
+	HUGE_FILES(4, 32 * 1024 * 1024, 32 * 1024 * 1024, ZipEntry.DEFLATED, 0.5, 1),
+	/**
+	 * Incompressible image like files stored without compression.
+	 */
+	STORED(500, 100 * 1024, 300 * 1024, ZipEntry.STORED, 0.0, 1),
+	/**
+	 * Compressible files of medium size.
+	 */
+	DEFLATED(500, 100 * 1024, 300 * 1024, ZipEntry.DEFLATED, 1.0, 1),
+	/**
+	 * Small files spread over a deep directory tree.
+	 */
+	DEEP_TREE(2000, 1024, 8192, ZipEntry.DEFLATED, 1.0, 16);
+
+	private static final String[] WORDS = { "held", "schwert", "zauber", "talent", "ritter", "drache", "elf",
+			"zwerg", "magier", "aventurien", "gareth", "festum", "kampf", "ruestung", "trank" };
+
+	private final int files;
+	private final int minSize;
+	private final int maxSize;
+	private final int method;
+	private final double compressible;
+	private final int depth;
+
+	ArchiveCorpus(int files, int minSize, int maxSize, int method, double compressible, int depth) {
+		this.files = files;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.method = method;
+		this.compressible = compressible;
+		this.depth = depth;
+	}
+
+	/**
+	 * Returns the archive of this corpus in the given directory, generating it if it does not exist yet.
+	 */
+	public File create(File dir) throws IOException {
+		File archive = new File(dir, name().toLowerCase() + ".zip");
+		if (archive.isFile()) {
+			return archive;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+
+		File temp = new File(dir, archive.getName() + ".tmp");
+		Random random = new Random(ordinal());
+		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			for (int i = 0; i < files; i++) {
+				byte[] data = content(random, minSize + random.nextInt(maxSize - minSize + 1));
+				ZipEntry entry = new ZipEntry(path(i));
+				entry.setMethod(method);
+				if (method == ZipEntry.STORED) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					entry.setSize(data.length);
+					entry.setCompressedSize(data.length);
+					entry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(entry);
+				out.write(data);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(archive)) {
+			throw new IOException("Cannot create " + archive);
+		}
+		return archive;
+	}
+
+	private String path(int index) {
+		StringBuilder path = new StringBuilder();
+		if (depth > 1) {
+			for (int level = 0; level < depth; level++) {
+				path.append("level").append(level).append('-').append(index % (level + 2)).append('/');
+			}
+		} else {
+			path.append("folder").append(index % 50).append('/');
+		}
+		return path.append("file").append(index).append(method == ZipEntry.STORED ? ".jpg" : ".txt").toString();
+	}
+
+	private byte[] content(Random random, int size) {
+		byte[] data = new byte[size];
+		int textSize = (int) (size * compressible);
+		int pos = 0;
+		while (pos < textSize) {
+			byte[] word = WORDS[random.nextInt(WORDS.length)].getBytes();
+			for (int i = 0; i < word.length && pos < textSize; i++) {
+				data[pos++] = word[i];
+			}
+			if (pos < textSize) {
+				data[pos++] = ' ';
+			}
+		}
+		if (pos < size) {
+			byte[] noise = new byte[size - pos];
+			random.nextBytes(noise);
+			System.arraycopy(noise, 0, data, pos, noise.length);
+		}
+		return data;
+	}
+}
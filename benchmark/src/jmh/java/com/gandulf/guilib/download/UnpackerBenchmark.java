@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the {@link Unpacker} extracts the archives of an {@link ArchiveCorpus} into a fresh directory.
+ * Besides the operations per second, the megabytes and entries counters report the uncompressed MB/s and entries/s,
+ * the gc profiler configured in build.gradle adds the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UnpackerBenchmark {
+
+	@Param({ "TINY_FILES", "HUGE_FILES", "STORED", "DEFLATED", "DEEP_TREE" })
+	public ArchiveCorpus corpus;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File workDir;
+	private File archive;
+	private File targetDir;
+	private RandomAccessFile archiveFile;
+
+	private double megabytes;
+	private long entries;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public double megabytes;
+		public long entries;
+	}
+
+	@Setup(Level.Trial)
+	public void prepare() throws IOException {
+		workDir = new File(System.getProperty("java.io.tmpdir"), "guilib-benchmark");
+		archive = corpus.create(workDir);
+		targetDir = new File(workDir, "target-" + corpus.name().toLowerCase());
+		archiveFile = new RandomAccessFile(archive, "r");
+
+		long bytes = 0;
+		for (ArchiveEntry entry : ZipCentralDirectory.read(archiveFile.getChannel())) {
+			bytes += entry.getSize();
+			entries++;
+		}
+		megabytes = bytes / (1024.0 * 1024.0);
+	}
+
+	@Setup(Level.Invocation)
+	public void clean() throws IOException {
+		delete(targetDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void release() throws IOException {
+		archiveFile.close();
+		delete(targetDir);
+	}
+
+	@Benchmark
+	public void randomAccess(Counters counters) throws IOException {
+		Unpacker unpacker = new Unpacker(targetDir);
+		unpacker.setThreadCount(threads);
+		unpacker.extract(archiveFile.getChannel());
+		count(counters);
+	}
+
+	/**
+	 * Sequential extraction as used while downloading, the thread count does not apply.
+	 */
+	@Benchmark
+	public void streaming(Counters counters) throws IOException {
+		Unpacker unpacker = new Unpacker(targetDir);
+		unpacker.extract(new BufferedInputStream(new FileInputStream(archive), 8192));
+		count(counters);
+	}
+
+	private void count(Counters counters) {
+		counters.megabytes += megabytes;
+		counters.entries += entries;
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Cannot delete " + file);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads entries of a kept archive on demand.
+ */
+public class ArchiveIndexTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] CONTENT = "Hallo Aventurien".getBytes(UTF_8);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsStoredEntry() throws IOException {
+		ArchiveIndex index = new ArchiveIndex(write(storedArchive()));
+		try {
+			assertEquals("Hallo Aventurien", new String(read(index.open("stored.txt")), UTF_8));
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	public void rejectsCorruptStoredEntry() throws IOException {
+		byte[] archive = storedArchive();
+		// flip a byte of the data, the headers stay intact
+		archive[indexOf(archive, CONTENT) + 6] ^= 1;
+
+		ArchiveIndex index = new ArchiveIndex(write(archive));
+		try {
+			read(index.open("stored.txt"));
+			fail("corrupt stored entry read");
+		} catch (ZipException e) {
+			// expected
+		} finally {
+			index.close();
+		}
+	}
+
+	private static byte[] storedArchive() throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(CONTENT);
+		ZipEntry entry = new ZipEntry("stored.txt");
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(CONTENT.length);
+		entry.setCrc(crc.getValue());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(entry);
+		zip.write(CONTENT);
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	private static int indexOf(byte[] data, byte[] part) {
+		for (int i = 0; i + part.length <= data.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Not found");
+	}
+
+	private File write(byte[] archive) throws IOException {
+		File file = folder.newFile("archive.zip");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(archive);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Extracts archives served by a local http server while they are downloaded.
+ */
+public class HttpArchiveStreamTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+
+	private byte[] archive;
+
+	private byte[] image;
+
+	@Before
+	public void setUp() throws IOException {
+		// incompressible, so a truncated response ends in the middle of its data
+		image = new byte[256 * 1024];
+		new Random(42).nextBytes(image);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("readme.txt"));
+		zip.write("Hallo Aventurien".getBytes(UTF_8));
+		zip.putNextEntry(new ZipEntry("data/"));
+		zip.putNextEntry(new ZipEntry("data/images/held.png"));
+		zip.write(image);
+		zip.close();
+		archive = bytes.toByteArray();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/package.zip", new ArchiveHandler(archive.length));
+		server.createContext("/truncated.zip", new ArchiveHandler(archive.length / 2));
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void extractsWhileDownloading() throws IOException {
+		File targetDir = folder.newFolder("package");
+		File manifest = new File(folder.getRoot(), "package.manifest");
+		Unpacker unpacker = new Unpacker(targetDir);
+		unpacker.setManifestFile(manifest);
+
+		HttpArchiveStream in = HttpArchiveStream.open(url("/package.zip"));
+		assertEquals(archive.length, in.getContentLength());
+		unpacker.extract(in, in.getContentType());
+
+		assertEquals("Hallo Aventurien", new String(read(new File(targetDir, "readme.txt")), UTF_8));
+		assertArrayEquals(image, read(new File(targetDir, "data/images/held.png")));
+		assertEquals(2, InstallManifest.load(manifest).getNames().size());
+	}
+
+	@Test
+	public void truncatedResponseFails() throws IOException {
+		File targetDir = folder.newFolder("package");
+		File manifest = new File(folder.getRoot(), "package.manifest");
+		Unpacker unpacker = new Unpacker(targetDir);
+		unpacker.setManifestFile(manifest);
+
+		HttpArchiveStream in = HttpArchiveStream.open(url("/truncated.zip"));
+		try {
+			// UnzipIntentService reports this failure as RESULT_ERROR
+			unpacker.extract(in, in.getContentType());
+			fail("truncated archive extracted");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse("manifest vouches for a partial package", manifest.exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void missingArchiveFails() throws IOException {
+		HttpArchiveStream.open(url("/missing.zip"));
+	}
+
+	private String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Announces the whole archive but sends only the given number of bytes before the connection is dropped.
+	 */
+	private class ArchiveHandler implements HttpHandler {
+
+		private final int sent;
+
+		ArchiveHandler(int sent) {
+			this.sent = sent;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			exchange.getResponseHeaders().set("Content-Type", "application/zip");
+			exchange.sendResponseHeaders(200, archive.length);
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write(archive, 0, sent);
+				out.flush();
+			} finally {
+				// closing a short fixed length body fails and drops the connection
+				try {
+					exchange.close();
+				} catch (RuntimeException e) {
+					// expected for the truncated response
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Installs several packages staged into the same base directory.
+ */
+public class StagedInstallTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Hard links on the JVM, like the one used from Lollipop on.
+	 */
+	private static final ContentStore.Linker LINKER = new ContentStore.Linker() {
+		@Override
+		public void link(File existing, File link) throws IOException {
+			Files.createLink(link.toPath(), existing.toPath());
+		}
+
+		@Override
+		public int getLinkCount(File file) throws IOException {
+			return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keepsAllPackagesWithoutLinker() throws IOException, InterruptedException {
+		keepsAllPackages(null);
+	}
+
+	@Test
+	public void keepsAllPackagesWithLinker() throws IOException, InterruptedException {
+		keepsAllPackages(LINKER);
+	}
+
+	@Test
+	public void updateKeepsOtherPackages() throws IOException, InterruptedException {
+		StagedInstall install = new StagedInstall(folder.newFolder("packages"));
+		install.setLinker(LINKER);
+		install(install, "http://example.com/a.zip", false, "a/held.txt", "Alrik", "a/alt.txt", "Alt");
+		install(install, "http://example.com/b.zip", false, "b/held.txt", "Boronian");
+		File previous = install.getCurrentDir();
+
+		install(install, "http://example.com/a.zip", true, "a/held.txt", "Alrike");
+
+		File current = install.getCurrentDir();
+		assertEquals("Alrike", read(new File(current, "a/held.txt")));
+		// the previous version is kept for readers still busy with it, the update must not write into its links
+		assertEquals("Alrik", read(new File(previous, "a/held.txt")));
+		assertFalse(new File(current, "a/alt.txt").exists());
+		assertEquals("Boronian", read(new File(current, "b/held.txt")));
+	}
+
+	private void keepsAllPackages(ContentStore.Linker linker) throws IOException, InterruptedException {
+		StagedInstall install = new StagedInstall(folder.newFolder("packages"));
+		install.setLinker(linker);
+
+		install(install, "http://example.com/a.zip", false, "a/held.txt", "Alrik");
+		File first = install.getCurrentDir();
+		install(install, "http://example.com/b.zip", false, "b/held.txt", "Boronian");
+		install(install, "http://example.com/c.zip", false, "c/held.txt", "Cuano");
+
+		File current = install.getCurrentDir();
+		assertFalse(first.equals(current));
+		assertEquals("Alrik", read(new File(current, "a/held.txt")));
+		assertEquals("Boronian", read(new File(current, "b/held.txt")));
+		assertEquals("Cuano", read(new File(current, "c/held.txt")));
+		assertEquals(3, InstallManifest.listFiles(current).size());
+	}
+
+	/**
+	 * Extracts an archive of the given names and contents into a new version like the service does.
+	 */
+	private void install(StagedInstall install, String url, boolean deleteRemoved, String... entries)
+			throws IOException, InterruptedException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (int i = 0; i < entries.length; i += 2) {
+			zip.putNextEntry(new ZipEntry(entries[i]));
+			zip.write(entries[i + 1].getBytes(UTF_8));
+		}
+		zip.close();
+		File archive = folder.newFile();
+		FileOutputStream out = new FileOutputStream(archive);
+		try {
+			bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		File stagingDir = install.stage(url);
+		try {
+			Unpacker unpacker = new Unpacker(stagingDir);
+			unpacker.setManifestFile(InstallManifest.getFile(stagingDir, url));
+			unpacker.setDeleteRemoved(deleteRemoved);
+			FileInputStream in = new FileInputStream(archive);
+			try {
+				unpacker.extract(in.getChannel());
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			install.abort(stagingDir);
+			throw e;
+		}
+		install.commit(stagingDir);
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), UTF_8);
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Extracts tar archives with the long names written by GNU and POSIX tar.
+ */
+public class TarExtractorTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Magic and version of POSIX and of GNU tar headers.
+	 */
+	private static final String POSIX = "ustar\0" + "00";
+	private static final String GNU = "ustar  \0";
+
+	private static final String LONG_NAME = "data/" + repeat("aventurien/", 8) + repeat("schwert", 10) + ".txt";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void extractsGnuLongName() throws IOException {
+		assertTrue(LONG_NAME.length() > 100);
+		TarBuilder tar = new TarBuilder();
+		tar.header("././@LongLink", 'L', LONG_NAME.length() + 1, GNU);
+		tar.data((LONG_NAME + "\0").getBytes(UTF_8));
+		tar.file(LONG_NAME.substring(0, 100), "Hallo Gareth", GNU);
+		tar.file("readme.txt", "Hallo Festum", GNU);
+
+		File targetDir = extract(tar.finish());
+
+		assertEquals("Hallo Gareth", read(new File(targetDir, LONG_NAME)));
+		assertEquals("Hallo Festum", read(new File(targetDir, "readme.txt")));
+		assertEquals(Arrays.asList("data", "readme.txt"), list(targetDir));
+	}
+
+	@Test
+	public void extractsPaxPath() throws IOException {
+		File targetDir = extract(paxArchive());
+
+		assertEquals("Hallo Gareth", read(new File(targetDir, LONG_NAME)));
+		assertEquals(Arrays.asList("data"), list(targetDir));
+	}
+
+	@Test
+	public void extractsGzippedPaxPath() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(paxArchive());
+		gzip.close();
+
+		File targetDir = extract(bytes.toByteArray());
+
+		assertEquals("Hallo Gareth", read(new File(targetDir, LONG_NAME)));
+	}
+
+	@Test
+	public void extractsUstarPrefix() throws IOException {
+		TarBuilder tar = new TarBuilder();
+		tar.header("held.txt", '0', 5, POSIX, "data/helden");
+		tar.data("Alrik".getBytes(UTF_8));
+
+		File targetDir = extract(tar.finish());
+
+		assertEquals("Alrik", read(new File(targetDir, "data/helden/held.txt")));
+	}
+
+	@Test
+	public void rejectsInvalidChecksum() throws IOException {
+		TarBuilder tar = new TarBuilder();
+		tar.file("readme.txt", "Hallo Festum", POSIX);
+		byte[] archive = tar.finish();
+		// corrupt the size, the checksum no longer matches
+		archive[124 + 10] = '7';
+		try {
+			extract(archive);
+			fail("corrupt header accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsMalformedPaxRecords() throws IOException {
+		String[] records = { "30path=schwert.txt", "3 path=schwert.txt\n", "99 path=schwert.txt\n",
+				"20 path=schwert.txt ", "13 size=viel\n", "11 size=-1\n" };
+		for (String record : records) {
+			byte[] pax = record.getBytes(UTF_8);
+			TarBuilder tar = new TarBuilder();
+			tar.header("PaxHeaders/schwert.txt", 'x', pax.length, POSIX);
+			tar.data(pax);
+			tar.file("schwert.txt", "Hallo Gareth", POSIX);
+			try {
+				extract(tar.finish());
+				fail("malformed record accepted: " + record);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	private static byte[] paxArchive() throws IOException {
+		byte[] pax = paxRecord("path", LONG_NAME);
+		TarBuilder tar = new TarBuilder();
+		tar.header("PaxHeaders/schwert.txt", 'x', pax.length, POSIX);
+		tar.data(pax);
+		tar.file("schwert.txt", "Hallo Gareth", POSIX);
+		return tar.finish();
+	}
+
+	/**
+	 * Formats "&lt;length&gt; &lt;key&gt;=&lt;value&gt;\n", the length counting its own digits.
+	 */
+	private static byte[] paxRecord(String key, String value) {
+		int body = (" " + key + "=" + value + "\n").getBytes(UTF_8).length;
+		int length = body + String.valueOf(body).length();
+		if (String.valueOf(length).length() != String.valueOf(body).length()) {
+			length++;
+		}
+		return (length + " " + key + "=" + value + "\n").getBytes(UTF_8);
+	}
+
+	private File extract(byte[] archive) throws IOException {
+		File targetDir = folder.newFolder();
+		new Unpacker(targetDir).extract(new ByteArrayInputStream(archive));
+		return targetDir;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), UTF_8);
+	}
+
+	private static List<String> list(File dir) {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+
+	private static String repeat(String value, int count) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			result.append(value);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Writes tar headers and data blocks the way tar does.
+	 */
+	private static class TarBuilder {
+
+		private static final int BLOCK = 512;
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		void file(String name, String content, String magic) {
+			byte[] data = content.getBytes(UTF_8);
+			header(name, '0', data.length, magic);
+			data(data);
+		}
+
+		void header(String name, char type, long size, String magic) {
+			header(name, type, size, magic, "");
+		}
+
+		void header(String name, char type, long size, String magic, String prefix) {
+			byte[] header = new byte[BLOCK];
+			put(header, 0, 100, name);
+			put(header, 100, 8, "0000644");
+			put(header, 108, 8, "0000000");
+			put(header, 116, 8, "0000000");
+			put(header, 124, 12, String.format("%011o", size));
+			put(header, 136, 12, "00000000000");
+			header[156] = (byte) type;
+			put(header, 257, 6, magic);
+			put(header, 263, 2, magic.startsWith(POSIX) ? "00" : " ");
+			put(header, 345, 155, prefix);
+
+			Arrays.fill(header, 148, 156, (byte) ' ');
+			long sum = 0;
+			for (byte b : header) {
+				sum += b & 0xFF;
+			}
+			put(header, 148, 8, String.format("%06o", sum));
+			out.write(header, 0, BLOCK);
+		}
+
+		void data(byte[] data) {
+			out.write(data, 0, data.length);
+			int padding = (BLOCK - data.length % BLOCK) % BLOCK;
+			out.write(new byte[padding], 0, padding);
+		}
+
+		byte[] finish() {
+			// end of archive marker
+			out.write(new byte[2 * BLOCK], 0, 2 * BLOCK);
+			return out.toByteArray();
+		}
+
+		private static void put(byte[] header, int offset, int length, String value) {
+			byte[] bytes = value.getBytes(UTF_8);
+			System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Installs several packages into the same directory.
+ */
+public class UnpackerTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void updateKeepsFilesOfOtherPackages() throws IOException {
+		File dir = folder.newFolder("packages");
+		install(dir, "http://example.com/a.zip", false, "a/held.txt", "Alrik", "common/logo.png", "A");
+		install(dir, "http://example.com/b.zip", false, "b/held.txt", "Boronian", "common/logo.png", "B");
+
+		install(dir, "http://example.com/a.zip", true, "a/held.txt", "Alrike");
+
+		assertEquals("Alrike", read(new File(dir, "a/held.txt")));
+		assertEquals("Boronian", read(new File(dir, "b/held.txt")));
+		// dropped by a, but still part of b
+		assertEquals("B", read(new File(dir, "common/logo.png")));
+		assertEquals(2, InstallManifest.listFiles(dir).size());
+	}
+
+	@Test
+	public void updateDeletesRemovedFilesOfItsOwnPackage() throws IOException {
+		File dir = folder.newFolder("packages");
+		install(dir, "http://example.com/a.zip", false, "a/held.txt", "Alrik", "a/alt.txt", "Alt");
+		install(dir, "http://example.com/b.zip", false, "b/held.txt", "Boronian");
+
+		install(dir, "http://example.com/a.zip", true, "a/held.txt", "Alrik");
+
+		assertFalse(new File(dir, "a/alt.txt").exists());
+		assertTrue(new File(dir, "b/held.txt").isFile());
+	}
+
+	@Test
+	public void updateReportsRemovedFiles() throws IOException {
+		File dir = folder.newFolder("packages");
+		install(dir, "http://example.com/a.zip", false, "a/held.txt", "Alrik", "a/alt.png", "Alt", "common/logo.png",
+				"A");
+		install(dir, "http://example.com/b.zip", false, "common/logo.png", "B");
+
+		final List<String> removed = new ArrayList<>();
+		install(dir, "http://example.com/a.zip", true, new UnpackObserver.Adapter() {
+			@Override
+			public void onFileRemoved(String name, File file) {
+				removed.add(name);
+				assertFalse(file.exists());
+			}
+		}, "a/held.txt", "Alrik");
+
+		// the logo is kept for b
+		assertEquals(Arrays.asList("a/alt.png"), removed);
+	}
+
+	@Test
+	public void rejectsCorruptStoredEntry() throws IOException {
+		byte[] content = "Hallo Aventurien".getBytes(UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		ZipEntry entry = new ZipEntry("stored.txt");
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(content.length);
+		entry.setCrc(crc.getValue());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(entry);
+		zip.write(content);
+		zip.close();
+		byte[] archive = bytes.toByteArray();
+		// flip a byte of the data, the headers stay intact
+		archive[indexOf(archive, content) + 6] ^= 1;
+
+		File dir = folder.newFolder("package");
+		File checkpoint = new File(folder.getRoot(), "checkpoint");
+		File manifest = InstallManifest.getFile(dir, "http://example.com/stored.zip");
+		Unpacker unpacker = new Unpacker(dir);
+		unpacker.setCheckpointFile(checkpoint);
+		unpacker.setManifestFile(manifest);
+		try {
+			extract(unpacker, archive);
+			fail("corrupt stored entry extracted");
+		} catch (ZipException e) {
+			// expected
+		}
+		assertFalse(manifest.exists());
+		assertTrue(!checkpoint.exists() || checkpoint.length() == 0);
+	}
+
+	/**
+	 * Extracts an archive of the given names and contents like the service does.
+	 */
+	private void install(File dir, String url, boolean deleteRemoved, String... entries) throws IOException {
+		install(dir, url, deleteRemoved, new UnpackObserver.Adapter(), entries);
+	}
+
+	private void install(File dir, String url, boolean deleteRemoved, UnpackObserver observer, String... entries)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (int i = 0; i < entries.length; i += 2) {
+			zip.putNextEntry(new ZipEntry(entries[i]));
+			zip.write(entries[i + 1].getBytes(UTF_8));
+		}
+		zip.close();
+
+		Unpacker unpacker = new Unpacker(dir);
+		unpacker.setManifestFile(InstallManifest.getFile(dir, url));
+		unpacker.setDeleteRemoved(deleteRemoved);
+		unpacker.addObserver(observer);
+		extract(unpacker, bytes.toByteArray());
+	}
+
+	private void extract(Unpacker unpacker, byte[] archive) throws IOException {
+		File file = folder.newFile();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(archive);
+		} finally {
+			out.close();
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			unpacker.extract(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int indexOf(byte[] data, byte[] part) {
+		for (int i = 0; i + part.length <= data.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Not found");
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), UTF_8);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+/**
+ * Immutable description of a single archive entry, i.e. as found in the central directory of a zip file. Entries of
+ * a tar archive are always stored.
+ */
+public class ArchiveEntry {
+
+	/**
+	 * Value used for {@link #getCrc()} and the size getters if the value is not known.
+	 */
+	public static final long UNKNOWN = -1;
+
+	private final String name;
+	private final int method;
+	private final long size;
+	private final long compressedSize;
+	private final long crc;
+	private final long offset;
+
+	ArchiveEntry(String name, int method, long size, long compressedSize, long crc, long offset) {
+		this.name = name;
+		this.method = method;
+		this.size = size;
+		this.compressedSize = compressedSize;
+		this.crc = crc;
+		this.offset = offset;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the compression method, either {@link java.util.zip.ZipEntry#STORED} or
+	 *         {@link java.util.zip.ZipEntry#DEFLATED}
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the uncompressed size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	public long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * @return offset of the local file header within the archive
+	 */
+	long getOffset() {
+		return offset;
+	}
+
+	public boolean isDirectory() {
+		return name.endsWith("/");
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
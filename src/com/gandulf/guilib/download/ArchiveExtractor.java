@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the entries of one archive format sequentially from a stream, so the {@link Unpacker} can extract it while it
+ * is transferred. Formats are registered with and selected by {@link ArchiveExtractors}.
+ */
+public interface ArchiveExtractor {
+
+	/**
+	 * Entries of one archive in the order they are stored.
+	 */
+	interface EntryReader extends Closeable {
+
+		/**
+		 * Advances to the next entry, skipping whatever is left of the current one.
+		 *
+		 * @return the next entry, its checksum and sizes may still be {@link ArchiveEntry#UNKNOWN}, or
+		 *         <code>null</code> at the end of the archive
+		 */
+		ArchiveEntry nextEntry() throws IOException;
+
+		/**
+		 * @return the uncompressed content of the current entry, which ends with the entry and must not be closed
+		 */
+		InputStream getContent();
+
+		/**
+		 * Called once the content of the current entry has been read completely.
+		 *
+		 * @return the current entry with its checksum and sizes as far as they are known now
+		 * @throws IOException
+		 *             if the content turned out to be corrupt
+		 */
+		ArchiveEntry finishEntry() throws IOException;
+	}
+
+	/**
+	 * Number of leading bytes of an archive passed to {@link #matchesMagic(byte[], int)}.
+	 */
+	int MAGIC_LENGTH = 512;
+
+	/**
+	 * @return a short name of the format, i.e. "zip"
+	 */
+	String getName();
+
+	/**
+	 * @param header
+	 *            the first bytes of the archive
+	 * @param length
+	 *            number of valid bytes in the header, less than {@link #MAGIC_LENGTH} for tiny archives
+	 * @return <code>true</code> if the bytes identify this format
+	 */
+	boolean matchesMagic(byte[] header, int length);
+
+	/**
+	 * @param contentType
+	 *            lower case mime type without parameters
+	 */
+	boolean matchesContentType(String contentType);
+
+	/**
+	 * Starts reading an archive, closing the reader closes the stream.
+	 */
+	EntryReader open(InputStream in) throws IOException;
+}
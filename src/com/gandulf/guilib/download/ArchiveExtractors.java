@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the supported {@link ArchiveExtractor archive formats}. The format of an archive is recognized by its
+ * leading magic bytes, the content type announced for it is only consulted if these are not conclusive.
+ */
+public final class ArchiveExtractors {
+
+	public static final ArchiveExtractor ZIP = new ZipExtractor();
+
+	public static final ArchiveExtractor TAR = new TarExtractor(false);
+
+	public static final ArchiveExtractor TAR_GZ = new TarExtractor(true);
+
+	private static final List<ArchiveExtractor> extractors = new CopyOnWriteArrayList<>();
+
+	static {
+		extractors.add(ZIP);
+		extractors.add(TAR_GZ);
+		extractors.add(TAR);
+	}
+
+	private ArchiveExtractors() {
+	}
+
+	/**
+	 * Adds a format, it takes precedence over the formats registered before.
+	 */
+	public static void register(ArchiveExtractor extractor) {
+		extractors.add(0, extractor);
+	}
+
+	public static void unregister(ArchiveExtractor extractor) {
+		extractors.remove(extractor);
+	}
+
+	/**
+	 * @param contentType
+	 *            mime type announced for the archive or <code>null</code>
+	 * @return the format of the archive or <code>null</code> if it is not supported
+	 */
+	public static ArchiveExtractor find(String contentType, byte[] header, int length) {
+		for (ArchiveExtractor extractor : extractors) {
+			if (extractor.matchesMagic(header, length)) {
+				return extractor;
+			}
+		}
+		if (contentType != null) {
+			String type = normalize(contentType);
+			for (ArchiveExtractor extractor : extractors) {
+				if (extractor.matchesContentType(type)) {
+					return extractor;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks at the first bytes of a stream, which must support marks.
+	 */
+	static ArchiveExtractor find(String contentType, InputStream in) throws IOException {
+		byte[] header = new byte[ArchiveExtractor.MAGIC_LENGTH];
+		in.mark(header.length);
+		int length = 0;
+		try {
+			int count;
+			while (length < header.length && (count = in.read(header, length, header.length - length)) != -1) {
+				length += count;
+			}
+		} finally {
+			in.reset();
+		}
+		return find(contentType, header, length);
+	}
+
+	/**
+	 * Looks at the first bytes of a channel using a positional read.
+	 */
+	static ArchiveExtractor find(String contentType, FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(ArchiveExtractor.MAGIC_LENGTH);
+		while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+			// read until the buffer is full or the archive ends
+		}
+		return find(contentType, header.array(), header.position());
+	}
+
+	private static String normalize(String contentType) {
+		int parameters = contentType.indexOf(';');
+		if (parameters >= 0) {
+			contentType = contentType.substring(0, parameters);
+		}
+		return contentType.trim().toLowerCase(Locale.US);
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip archive on demand instead of extracting it up front. The central directory is read once
+ * when the archive is opened, an entry is only inflated when it is read. Inflated entries are kept in a cache bounded
+ * in bytes, the least recently used ones are dropped first. Stored entries are read straight from the archive.
+ * <p>
+ * Entries may be read concurrently, the archive is accessed through positional reads only.
+ */
+public class ArchiveIndex implements Closeable {
+
+	public static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Entries larger than this part of the cache are streamed, so one of them cannot flush the whole cache.
+	 */
+	private static final int MAX_CACHED_FRACTION = 4;
+
+	private final File file;
+
+	private final RandomAccessFile archive;
+
+	private final FileChannel channel;
+
+	private final Map<String, ArchiveEntry> entries;
+
+	private final BufferPool bufferPool = BufferPool.getDefault();
+
+	/**
+	 * Inflated entries in access order.
+	 */
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long cacheSize;
+
+	private long maxCacheSize = DEFAULT_CACHE_SIZE;
+
+	private long hits;
+
+	private long misses;
+
+	/**
+	 * Opens a zip archive and reads its central directory.
+	 *
+	 * @throws ZipException
+	 *             if the file is not a valid zip archive
+	 */
+	public ArchiveIndex(File file) throws IOException {
+		this.file = file;
+		this.archive = new RandomAccessFile(file, "r");
+		try {
+			this.channel = archive.getChannel();
+			List<ArchiveEntry> list = ZipCentralDirectory.read(channel);
+			Map<String, ArchiveEntry> map = new HashMap<>(list.size() * 2);
+			for (ArchiveEntry entry : list) {
+				if (!entry.isDirectory()) {
+					map.put(entry.getName(), entry);
+				}
+			}
+			this.entries = Collections.unmodifiableMap(map);
+		} catch (IOException | RuntimeException e) {
+			archive.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return names of all file entries of the archive
+	 */
+	public Collection<String> getNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * @return the file entry of the given name, <code>null</code> if the archive does not contain it
+	 */
+	public ArchiveEntry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Opens the content of a file entry. Entries are verified against their CRC, stored ones and large deflated ones
+	 * once they have been read to the end.
+	 *
+	 * @throws FileNotFoundException
+	 *             if the archive does not contain the entry
+	 */
+	public InputStream open(String name) throws IOException {
+		ArchiveEntry entry = entries.get(name);
+		if (entry == null) {
+			throw new FileNotFoundException(name + " not found in " + file);
+		}
+		if (entry.getMethod() == ZipEntry.STORED) {
+			return new CheckedEntryStream(new ChannelInputStream(channel, ZipCentralDirectory.getDataOffset(channel,
+					entry), entry.getCompressedSize()), entry);
+		}
+
+		byte[] data;
+		synchronized (cache) {
+			data = cache.get(name);
+			if (data != null) {
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+		if (data != null) {
+			return new ByteArrayInputStream(data);
+		}
+
+		long limit;
+		synchronized (cache) {
+			limit = maxCacheSize / MAX_CACHED_FRACTION;
+		}
+		if (entry.getSize() > limit) {
+			return new CheckedEntryStream(ZipCentralDirectory.openEntry(channel, entry, bufferPool), entry);
+		}
+		data = inflate(entry);
+		synchronized (cache) {
+			byte[] previous = cache.put(name, data);
+			cacheSize += data.length - (previous != null ? previous.length : 0);
+			trim();
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	public long getMaxCacheSize() {
+		synchronized (cache) {
+			return maxCacheSize;
+		}
+	}
+
+	/**
+	 * @param maxCacheSize
+	 *            maximum number of bytes of the inflated entries kept in memory, defaults to 8 MiB
+	 */
+	public void setMaxCacheSize(long maxCacheSize) {
+		synchronized (cache) {
+			this.maxCacheSize = maxCacheSize;
+			trim();
+		}
+	}
+
+	/**
+	 * @return number of bytes of the inflated entries in memory
+	 */
+	public long getCacheSize() {
+		synchronized (cache) {
+			return cacheSize;
+		}
+	}
+
+	/**
+	 * @return number of deflated entries served from the cache
+	 */
+	public long getCacheHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	/**
+	 * @return number of deflated entries that had to be inflated
+	 */
+	public long getCacheMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Empties the cache, e.g. when the system runs low on memory.
+	 */
+	public void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+			cacheSize = 0;
+		}
+	}
+
+	/**
+	 * Closes the archive, streams opened before must not be read anymore.
+	 */
+	@Override
+	public void close() throws IOException {
+		clearCache();
+		archive.close();
+	}
+
+	private byte[] inflate(ArchiveEntry entry) throws IOException {
+		byte[] data = new byte[(int) entry.getSize()];
+		InputStream in = ZipCentralDirectory.openEntry(channel, entry, bufferPool);
+		try {
+			int length = 0;
+			while (length < data.length) {
+				int count = in.read(data, length, data.length - length);
+				if (count == -1) {
+					throw new EOFException("Unexpected end of archive in " + entry.getName());
+				}
+				length += count;
+			}
+		} finally {
+			in.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		if (crc.getValue() != entry.getCrc()) {
+			throw new ZipException("CRC mismatch for " + entry.getName());
+		}
+		return data;
+	}
+
+	/**
+	 * Drops the least recently used entries until the cache fits its bound, called holding the lock of the cache.
+	 */
+	private void trim() {
+		Iterator<byte[]> iterator = cache.values().iterator();
+		while (cacheSize > maxCacheSize && iterator.hasNext()) {
+			cacheSize -= iterator.next().length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Verifies the CRC of an entry streamed from the archive once it has been read completely.
+	 */
+	private static class CheckedEntryStream extends FilterInputStream {
+
+		private final ArchiveEntry entry;
+
+		private final CRC32 crc = new CRC32();
+
+		CheckedEntryStream(InputStream in, ArchiveEntry entry) {
+			super(in);
+			this.entry = entry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count == -1) {
+				if (crc.getValue() != entry.getCrc()) {
+					throw new ZipException("CRC mismatch for " + entry.getName());
+				}
+			} else {
+				crc.update(b, off, count);
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes are read anyway to keep the checksum complete
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+				if (count == -1) {
+					break;
+				}
+				skipped += count;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
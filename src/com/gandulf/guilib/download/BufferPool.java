@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of the byte buffers and inflaters used while extracting, so extracting many entries does not allocate new
+ * ones for each entry.
+ * <p>
+ * Buffers come in a few size classes. Small entries get the smallest buffer that holds them completely. For large
+ * entries the pool measures the throughput achieved with its two largest size classes and hands out the faster one,
+ * trying the other one every now and then in case the conditions changed.
+ */
+public class BufferPool {
+
+	public static class Statistics {
+
+		private final long allocations;
+		private final long reuses;
+		private final long inflaterAllocations;
+		private final long inflaterReuses;
+		private final long pooledBytes;
+		private final int preferredSize;
+
+		Statistics(long allocations, long reuses, long inflaterAllocations, long inflaterReuses, long pooledBytes,
+				int preferredSize) {
+			this.allocations = allocations;
+			this.reuses = reuses;
+			this.inflaterAllocations = inflaterAllocations;
+			this.inflaterReuses = inflaterReuses;
+			this.pooledBytes = pooledBytes;
+			this.preferredSize = preferredSize;
+		}
+
+		/**
+		 * @return number of buffers that had to be allocated
+		 */
+		public long getAllocations() {
+			return allocations;
+		}
+
+		/**
+		 * @return number of buffers handed out again from the pool
+		 */
+		public long getReuses() {
+			return reuses;
+		}
+
+		public long getInflaterAllocations() {
+			return inflaterAllocations;
+		}
+
+		public long getInflaterReuses() {
+			return inflaterReuses;
+		}
+
+		/**
+		 * @return bytes currently held by idle buffers
+		 */
+		public long getPooledBytes() {
+			return pooledBytes;
+		}
+
+		/**
+		 * @return buffer size currently used for large entries
+		 */
+		public int getPreferredSize() {
+			return preferredSize;
+		}
+
+		@Override
+		public String toString() {
+			return "allocations=" + allocations + ", reuses=" + reuses + ", inflaterAllocations="
+					+ inflaterAllocations + ", inflaterReuses=" + inflaterReuses + ", pooledBytes=" + pooledBytes
+					+ ", preferredSize=" + preferredSize;
+		}
+	}
+
+	private static final int[] SIZES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024 };
+
+	/**
+	 * Every this many large buffers, the size class that is currently slower is handed out to measure it again.
+	 */
+	private static final int EXPLORE_INTERVAL = 16;
+
+	private static final BufferPool DEFAULT = new BufferPool(2 * Runtime.getRuntime().availableProcessors());
+
+	private final List<Queue<byte[]>> buffers = new ArrayList<>(SIZES.length);
+	private final AtomicInteger[] idle = new AtomicInteger[SIZES.length];
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleInflaters = new AtomicInteger();
+	private final int maxIdle;
+
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+	private final AtomicLong inflaterAllocations = new AtomicLong();
+	private final AtomicLong inflaterReuses = new AtomicLong();
+
+	private final AtomicLong largeRequests = new AtomicLong();
+	// bytes per millisecond achieved with the two largest size classes
+	private final long[] throughput = new long[2];
+
+	/**
+	 * @return the pool shared by all extractions of the process
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param maxIdle
+	 *            maximum number of idle buffers kept per size class, and of idle inflaters
+	 */
+	public BufferPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+		for (int i = 0; i < SIZES.length; i++) {
+			buffers.add(new ConcurrentLinkedQueue<byte[]>());
+			idle[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @param expectedSize
+	 *            number of bytes the buffer will be used for in total, or {@link ArchiveEntry#UNKNOWN}
+	 * @return a buffer suited for the expected size, to be given back with {@link #release(byte[])}
+	 */
+	public byte[] acquire(long expectedSize) {
+		int sizeClass = sizeClass(expectedSize);
+		byte[] buffer = buffers.get(sizeClass).poll();
+		if (buffer != null) {
+			idle[sizeClass].decrementAndGet();
+			reuses.incrementAndGet();
+			return buffer;
+		}
+		allocations.incrementAndGet();
+		return new byte[SIZES[sizeClass]];
+	}
+
+	public void release(byte[] buffer) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (SIZES[i] == buffer.length) {
+				if (idle[i].incrementAndGet() <= maxIdle) {
+					buffers.get(i).offer(buffer);
+				} else {
+					idle[i].decrementAndGet();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return an inflater for raw deflate data, to be given back with {@link #releaseInflater(Inflater)}
+	 */
+	Inflater acquireInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater != null) {
+			idleInflaters.decrementAndGet();
+			inflaterReuses.incrementAndGet();
+			return inflater;
+		}
+		inflaterAllocations.incrementAndGet();
+		return new Inflater(true);
+	}
+
+	void releaseInflater(Inflater inflater) {
+		if (idleInflaters.incrementAndGet() <= maxIdle) {
+			inflater.reset();
+			inflaters.offer(inflater);
+		} else {
+			idleInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Reports how fast a buffer has been used, feeds the choice of the buffer size for large entries.
+	 */
+	void recordThroughput(int bufferSize, long bytes, long nanos) {
+		int slot = largeSlot(bufferSize);
+		if (slot < 0 || bytes < 4L * bufferSize || nanos <= 0) {
+			return;
+		}
+		long sample = bytes * 1000000L / nanos;
+		synchronized (throughput) {
+			throughput[slot] = throughput[slot] == 0 ? sample : (throughput[slot] * 7 + sample) / 8;
+		}
+	}
+
+	public Statistics getStatistics() {
+		long pooledBytes = 0;
+		for (int i = 0; i < SIZES.length; i++) {
+			pooledBytes += (long) idle[i].get() * SIZES[i];
+		}
+		return new Statistics(allocations.get(), reuses.get(), inflaterAllocations.get(), inflaterReuses.get(),
+				pooledBytes, SIZES[fasterLargeClass()]);
+	}
+
+	private int sizeClass(long expectedSize) {
+		if (expectedSize >= 0) {
+			for (int i = 0; i < SIZES.length - 2; i++) {
+				if (expectedSize <= SIZES[i]) {
+					return i;
+				}
+			}
+		}
+		int faster = fasterLargeClass();
+		if (largeRequests.incrementAndGet() % EXPLORE_INTERVAL == 0) {
+			return faster == SIZES.length - 1 ? SIZES.length - 2 : SIZES.length - 1;
+		}
+		return faster;
+	}
+
+	private int fasterLargeClass() {
+		synchronized (throughput) {
+			return throughput[1] > throughput[0] ? SIZES.length - 1 : SIZES.length - 2;
+		}
+	}
+
+	private static int largeSlot(int bufferSize) {
+		if (bufferSize == SIZES[SIZES.length - 2]) {
+			return 0;
+		} else if (bufferSize == SIZES[SIZES.length - 1]) {
+			return 1;
+		}
+		return -1;
+	}
+}
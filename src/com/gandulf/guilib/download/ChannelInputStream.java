@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a region of a file channel using positional reads only, so several streams may share one channel across
+ * threads without interfering with each other.
+ */
+class ChannelInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private long position;
+	private final long end;
+
+	ChannelInputStream(FileChannel channel, long position, long length) {
+		this.channel = channel;
+		this.position = position;
+		this.end = position + length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		long remaining = end - position;
+		if (remaining <= 0) {
+			return -1;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+		int count = channel.read(buffer, position);
+		if (count == -1) {
+			return -1;
+		}
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+}
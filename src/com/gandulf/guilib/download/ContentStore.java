@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the content of extracted files once, keyed by its SHA-256 hash, so packages sharing files cost the storage
+ * and the writes of one copy only. An entry with the CRC and size of stored content is merely hashed to prove it is
+ * the same, without writing anything.
+ * <p>
+ * The files of a package are hard links to the stored objects if a {@link Linker} is available. Otherwise the package
+ * directory keeps an index of its paths, and readers find the files through {@link #resolve(File, String)}. Stored
+ * objects are shared and read-only, they must never be modified in place.
+ * <p>
+ * Objects no package refers to any more are deleted by {@link #collect()}, which runs after an extraction replaced or
+ * removed files. An object is still in use while it has a hard link besides its own path or an entry in a path index,
+ * the store counts the entries of all path indexes.
+ */
+public class ContentStore {
+
+	public interface Linker {
+
+		/**
+		 * Creates a hard link to an existing file, the link does not exist yet.
+		 */
+		void link(File existing, File link) throws IOException;
+
+		/**
+		 * @return number of hard links of the file, 1 if no other path shares its content
+		 */
+		int getLinkCount(File file) throws IOException;
+	}
+
+	/**
+	 * Name of the path index within a package directory, used for the files that could not be linked.
+	 */
+	static final String INDEX_NAME = ".content-index";
+
+	private static final String CONTENT_INDEX_NAME = "content-index";
+
+	private static final String REFS_NAME = "content-refs";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final File dir;
+
+	private final File objectDir;
+
+	private final File tempDir;
+
+	private volatile Linker linker;
+
+	/**
+	 * Hashes of the stored objects by CRC and size, loaded on first use.
+	 */
+	private Map<String, List<String>> hashes;
+
+	/**
+	 * Number of path index entries referring to each object, objects without any are missing. Loaded on first use.
+	 */
+	private Map<String, Integer> refs;
+
+	private boolean modified;
+
+	private int openSessions;
+
+	/**
+	 * Whether objects may have lost their last reference since the last collection.
+	 */
+	private boolean collectPending;
+
+	/**
+	 * Path indexes of the package directories read so far.
+	 */
+	private final Map<File, Map<String, String>> pathIndexes = new HashMap<>();
+
+	/**
+	 * @param dir
+	 *            directory of the store, must be on the same file system as the package directories for linking
+	 */
+	public ContentStore(File dir) {
+		this.dir = dir;
+		this.objectDir = new File(dir, "objects");
+		this.tempDir = new File(dir, "tmp");
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public Linker getLinker() {
+		return linker;
+	}
+
+	/**
+	 * @param linker
+	 *            creates the files of the packages as hard links, <code>null</code> to use path indexes only
+	 */
+	public void setLinker(Linker linker) {
+		this.linker = linker;
+	}
+
+	/**
+	 * @return the file holding the content of the given path of a package directory, which is the path itself unless
+	 *         it is only listed in the path index
+	 */
+	public File resolve(File targetDir, String name) throws IOException {
+		File file = new File(targetDir, name);
+		String hash;
+		synchronized (this) {
+			hash = getPathIndex(targetDir).get(name);
+		}
+		return hash != null ? getObject(hash) : file;
+	}
+
+	/**
+	 * @return hashes of the stored objects with the given CRC and size
+	 */
+	synchronized List<String> find(long crc, long size) throws IOException {
+		List<String> found = getHashes().get(key(crc, size));
+		if (found == null) {
+			return Collections.emptyList();
+		}
+		List<String> existing = new ArrayList<>(found.size());
+		for (String hash : found) {
+			if (getObject(hash).isFile()) {
+				existing.add(hash);
+			}
+		}
+		return existing;
+	}
+
+	File getObject(String hash) {
+		return new File(new File(objectDir, hash.substring(0, 2)), hash.substring(2));
+	}
+
+	/**
+	 * @return a new empty file within the store, to be {@link #commit(File, String, long, long) committed} once written
+	 */
+	File createTempFile() throws IOException {
+		if (!tempDir.isDirectory() && !tempDir.mkdirs() && !tempDir.isDirectory()) {
+			throw new IOException("Cannot create " + tempDir);
+		}
+		return File.createTempFile("object", ".tmp", tempDir);
+	}
+
+	/**
+	 * Moves a written temporary file into the store, it is dropped if the same content is stored already.
+	 */
+	synchronized void commit(File temp, String hash, long crc, long size) throws IOException {
+		File object = getObject(hash);
+		if (object.isFile()) {
+			if (!temp.delete()) {
+				throw new IOException("Cannot delete " + temp);
+			}
+		} else {
+			File parent = object.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Cannot create " + parent);
+			}
+			temp.setReadOnly();
+			if (!temp.renameTo(object)) {
+				throw new IOException("Cannot store " + object);
+			}
+		}
+
+		String key = key(crc, size);
+		List<String> found = getHashes().get(key);
+		if (found == null) {
+			found = new ArrayList<>(1);
+			hashes.put(key, found);
+		}
+		if (!found.contains(hash)) {
+			found.add(hash);
+			modified = true;
+		}
+	}
+
+	/**
+	 * Starts installing files into a package directory.
+	 */
+	Session open(File targetDir) throws IOException {
+		// read again, the directory may have been renamed or replaced since
+		Session session = new Session(targetDir, loadPathIndex(targetDir));
+		synchronized (this) {
+			openSessions++;
+		}
+		return session;
+	}
+
+	/**
+	 * Deletes the objects no package refers to any more. While an extraction is using the store, the collection is
+	 * postponed until the last one has {@link Session#close() closed} its session.
+	 *
+	 * @return number of objects deleted
+	 */
+	public synchronized int collect() throws IOException {
+		if (openSessions > 0) {
+			collectPending = true;
+			return 0;
+		}
+		collectPending = false;
+		Map<String, Integer> counts = getRefs();
+		int deleted = 0;
+		for (Iterator<List<String>> lists = getHashes().values().iterator(); lists.hasNext();) {
+			List<String> found = lists.next();
+			for (Iterator<String> iterator = found.iterator(); iterator.hasNext();) {
+				String hash = iterator.next();
+				File object = getObject(hash);
+				if (!object.isFile()) {
+					iterator.remove();
+					modified = true;
+				} else if (!counts.containsKey(hash) && isUnlinked(object) && object.delete()) {
+					iterator.remove();
+					modified = true;
+					deleted++;
+				}
+			}
+			if (found.isEmpty()) {
+				lists.remove();
+			}
+		}
+		saveHashes();
+		return deleted;
+	}
+
+	/**
+	 * Counts the entries of the path index of a package directory that has been copied by linking its files.
+	 */
+	synchronized void retain(File targetDir) throws IOException {
+		for (String hash : loadPathIndex(targetDir).values()) {
+			addRef(hash, 1);
+		}
+		saveHashes();
+	}
+
+	/**
+	 * Drops the entries of the path index of a package directory about to be deleted, the objects only it refers to
+	 * are deleted by the next collection.
+	 */
+	synchronized void release(File targetDir) throws IOException {
+		for (String hash : loadPathIndex(targetDir).values()) {
+			addRef(hash, -1);
+		}
+		pathIndexes.remove(targetDir);
+		collectPending = true;
+		saveHashes();
+	}
+
+	/**
+	 * @return <code>true</code> if no package links to the object, always without a linker
+	 */
+	private boolean isUnlinked(File object) {
+		Linker linker = this.linker;
+		if (linker == null) {
+			return true;
+		}
+		try {
+			return linker.getLinkCount(object) <= 1;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void addRef(String hash, int delta) throws IOException {
+		Map<String, Integer> counts = getRefs();
+		Integer count = counts.get(hash);
+		int updated = (count != null ? count : 0) + delta;
+		if (updated > 0) {
+			counts.put(hash, updated);
+		} else {
+			counts.remove(hash);
+		}
+		modified = true;
+	}
+
+	/**
+	 * Installs the files of one extraction into a package directory.
+	 */
+	class Session {
+
+		private final File targetDir;
+
+		private final Map<String, String> paths;
+
+		private boolean changed;
+
+		/**
+		 * Changes of the reference counts, applied once the path index has been saved.
+		 */
+		private final Map<String, Integer> refDeltas = new HashMap<>();
+
+		/**
+		 * Whether a file or path index entry that referred to an object has been dropped.
+		 */
+		private boolean released;
+
+		private boolean closed;
+
+		private Session(File targetDir, Map<String, String> paths) {
+			this.targetDir = targetDir;
+			this.paths = paths;
+		}
+
+		/**
+		 * @return the file currently holding the content of the given path
+		 */
+		synchronized File getFile(String name, File file) {
+			String hash = paths.get(name);
+			return hash != null ? getObject(hash) : file;
+		}
+
+		/**
+		 * Makes the stored content available at the given path, replacing the file there.
+		 *
+		 * @return the file holding the content now
+		 */
+		File install(String hash, String name, File file) throws IOException {
+			File object = getObject(hash);
+			boolean replaced = file.exists();
+			if (replaced && !file.delete()) {
+				throw new IOException("Cannot delete " + file);
+			}
+			Linker linker = ContentStore.this.linker;
+			if (linker != null) {
+				try {
+					linker.link(object, file);
+					synchronized (this) {
+						released |= replaced;
+						unindex(name);
+					}
+					return file;
+				} catch (IOException e) {
+					// e.g. the store is on another file system, the path index still works
+				}
+			}
+			synchronized (this) {
+				released |= replaced;
+				String previous = paths.put(name, hash);
+				if (!hash.equals(previous)) {
+					changed = true;
+					addDelta(hash, 1);
+					if (previous != null) {
+						addDelta(previous, -1);
+						released = true;
+					}
+				}
+			}
+			return object;
+		}
+
+		/**
+		 * Forgets a path whose file has been deleted.
+		 */
+		synchronized void remove(String name) {
+			released = true;
+			unindex(name);
+		}
+
+		private void unindex(String name) {
+			String previous = paths.remove(name);
+			if (previous != null) {
+				changed = true;
+				addDelta(previous, -1);
+				released = true;
+			}
+		}
+
+		private void addDelta(String hash, int delta) {
+			Integer count = refDeltas.get(hash);
+			refDeltas.put(hash, (count != null ? count : 0) + delta);
+		}
+
+		/**
+		 * Saves the path index of the package directory and the content index of the store.
+		 */
+		void finish() throws IOException {
+			synchronized (this) {
+				if (changed) {
+					Map<String, String> index = new HashMap<>(paths);
+					File file = new File(targetDir, INDEX_NAME);
+					if (index.isEmpty()) {
+						if (file.exists() && !file.delete()) {
+							throw new IOException("Cannot delete " + file);
+						}
+					} else {
+						StringBuilder content = new StringBuilder();
+						for (Map.Entry<String, String> entry : index.entrySet()) {
+							content.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+						}
+						write(file, content);
+					}
+					synchronized (ContentStore.this) {
+						pathIndexes.put(targetDir, index);
+						for (Map.Entry<String, Integer> delta : refDeltas.entrySet()) {
+							addRef(delta.getKey(), delta.getValue());
+						}
+					}
+					refDeltas.clear();
+					changed = false;
+				}
+				if (released) {
+					synchronized (ContentStore.this) {
+						collectPending = true;
+					}
+					released = false;
+				}
+			}
+			saveHashes();
+		}
+
+		/**
+		 * Ends the session, whether it has been finished or not. The last session closed runs a pending collection.
+		 */
+		void close() {
+			synchronized (ContentStore.this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				openSessions--;
+				if (openSessions == 0 && collectPending) {
+					try {
+						collect();
+					} catch (IOException e) {
+						// tried again after the next extraction
+						collectPending = true;
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized void saveHashes() throws IOException {
+		if (!modified) {
+			return;
+		}
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, List<String>> entry : getHashes().entrySet()) {
+			for (String hash : entry.getValue()) {
+				content.append(hash).append('\t').append(entry.getKey()).append('\n');
+			}
+		}
+		write(new File(dir, CONTENT_INDEX_NAME), content);
+		content.setLength(0);
+		for (Map.Entry<String, Integer> entry : getRefs().entrySet()) {
+			content.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+		}
+		write(new File(dir, REFS_NAME), content);
+		modified = false;
+	}
+
+	private Map<String, Integer> getRefs() throws IOException {
+		if (refs == null) {
+			Map<String, Integer> loaded = new HashMap<>();
+			for (String line : readLines(new File(dir, REFS_NAME))) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					try {
+						loaded.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1)));
+					} catch (NumberFormatException e) {
+						// skip a damaged line
+					}
+				}
+			}
+			refs = loaded;
+		}
+		return refs;
+	}
+
+	private Map<String, List<String>> getHashes() throws IOException {
+		if (hashes == null) {
+			Map<String, List<String>> loaded = new HashMap<>();
+			for (String line : readLines(new File(dir, CONTENT_INDEX_NAME))) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					String key = line.substring(tab + 1);
+					List<String> found = loaded.get(key);
+					if (found == null) {
+						found = new ArrayList<>(1);
+						loaded.put(key, found);
+					}
+					found.add(line.substring(0, tab));
+				}
+			}
+			hashes = loaded;
+		}
+		return hashes;
+	}
+
+	private Map<String, String> getPathIndex(File targetDir) throws IOException {
+		Map<String, String> paths = pathIndexes.get(targetDir);
+		if (paths == null) {
+			paths = loadPathIndex(targetDir);
+			pathIndexes.put(targetDir, paths);
+		}
+		return paths;
+	}
+
+	private static Map<String, String> loadPathIndex(File targetDir) throws IOException {
+		Map<String, String> paths = new HashMap<>();
+		for (String line : readLines(new File(targetDir, INDEX_NAME))) {
+			int tab = line.indexOf('\t');
+			if (tab > 0) {
+				paths.put(line.substring(tab + 1), line.substring(0, tab));
+			}
+		}
+		return paths;
+	}
+
+	private static String key(long crc, long size) {
+		return Long.toHexString(crc) + '\t' + size;
+	}
+
+	static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		} catch (FileNotFoundException e) {
+			return lines;
+		}
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Replaces a file as a whole by writing a temporary file and renaming it.
+	 */
+	private static void write(File file, CharSequence content) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(content.toString().getBytes(UTF_8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the directories an extraction has already created or found writable, so the file system is asked about
+ * each directory once per extraction instead of once per entry. The file system calls made and saved are counted.
+ */
+final class DirectoryCache {
+
+	private final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	final AtomicLong statCalls = new AtomicLong();
+	final AtomicLong mkdirCalls = new AtomicLong();
+	final AtomicLong accessCalls = new AtomicLong();
+	final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Makes sure the given directory exists and is writable.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be created or written to
+	 */
+	void ensureWritable(File dir) throws IOException {
+		String path = dir.getPath();
+		if (verified.contains(path)) {
+			hits.incrementAndGet();
+			return;
+		}
+		// another worker may create the same directory at the same time, so a failed mkdirs is checked once more
+		if (!isDirectory(dir) && !mkdirs(dir) && !isDirectory(dir)) {
+			throw new IOException("Cannot create directory " + dir);
+		}
+		accessCalls.incrementAndGet();
+		if (!dir.canWrite()) {
+			throw new IOException("Cannot write to " + dir);
+		}
+		verified.add(path);
+	}
+
+	private boolean isDirectory(File dir) {
+		statCalls.incrementAndGet();
+		return dir.isDirectory();
+	}
+
+	private boolean mkdirs(File dir) {
+		mkdirCalls.incrementAndGet();
+		return dir.mkdirs();
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Handle of several downloads queued together by {@link Downloader#download(java.util.Collection)}. The batch is
+ * complete once every member has been downloaded and, if requested, extracted, or has failed.
+ * <p>
+ * Batches are only tracked in memory, the completion of a batch is not reported after the death of the process.
+ */
+public class DownloadBatch {
+
+	public interface Listener {
+
+		/**
+		 * Called on the main thread once all members of the batch have finished.
+		 */
+		void onBatchComplete(DownloadBatch batch);
+	}
+
+	private static final List<DownloadBatch> running = new CopyOnWriteArrayList<>();
+
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	private final List<DownloadScheduler.Request> requests;
+
+	/**
+	 * Result codes of the finished members.
+	 */
+	private final Map<DownloadScheduler.Request, Integer> results = new HashMap<>();
+
+	/**
+	 * Download ids whose final download status has been handled already.
+	 */
+	private final Set<Long> resolved = new HashSet<>();
+
+	private Listener listener;
+
+	DownloadBatch(List<DownloadScheduler.Request> requests) {
+		// a url listed twice joins the same request
+		this.requests = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(requests)));
+		if (!requests.isEmpty()) {
+			running.add(this);
+		}
+	}
+
+	/**
+	 * @return the batches the given download belongs to, several if they asked for the same download
+	 */
+	static List<DownloadBatch> find(long downloadId) {
+		List<DownloadBatch> batches = new ArrayList<>(1);
+		for (DownloadBatch batch : running) {
+			if (batch.getRequest(downloadId) != null) {
+				batches.add(batch);
+			}
+		}
+		return batches;
+	}
+
+	static void onDownloadSucceeded(long downloadId) {
+		for (DownloadBatch batch : find(downloadId)) {
+			DownloadScheduler.Request request = batch.getRequest(downloadId);
+			synchronized (batch) {
+				batch.resolved.add(downloadId);
+			}
+			// otherwise the member is finished by its extraction
+			if (request.getAction() == null) {
+				batch.finish(request, UnzipIntentService.RESULT_OK);
+			}
+		}
+	}
+
+	static void onDownloadFailed(long downloadId) {
+		for (DownloadBatch batch : find(downloadId)) {
+			synchronized (batch) {
+				batch.resolved.add(downloadId);
+			}
+			batch.finish(batch.getRequest(downloadId), UnzipIntentService.RESULT_ERROR);
+		}
+	}
+
+	static void onExtractionFinished(long downloadId, int result) {
+		for (DownloadBatch batch : find(downloadId)) {
+			batch.finish(batch.getRequest(downloadId), result);
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            receives the completion of the batch, called right away if the batch is complete already
+	 */
+	public void setListener(Listener listener) {
+		boolean complete;
+		synchronized (this) {
+			this.listener = listener;
+			complete = isComplete();
+		}
+		if (complete && listener != null) {
+			post(listener);
+		}
+	}
+
+	public List<String> getUrls() {
+		List<String> urls = new ArrayList<>(requests.size());
+		for (DownloadScheduler.Request request : requests) {
+			urls.add(request.getUrl());
+		}
+		return urls;
+	}
+
+	public int size() {
+		return requests.size();
+	}
+
+	public synchronized boolean isComplete() {
+		return results.size() == requests.size();
+	}
+
+	/**
+	 * @return the {@link UnzipIntentService} result code of the member with the given url, 0 while it is running
+	 */
+	public synchronized int getResult(String url) {
+		for (DownloadScheduler.Request request : requests) {
+			if (request.getUrl().equals(url)) {
+				Integer result = results.get(request);
+				return result != null ? result : 0;
+			}
+		}
+		throw new IllegalArgumentException("Not part of the batch: " + url);
+	}
+
+	/**
+	 * @return number of members that have finished successfully
+	 */
+	public synchronized int getSucceededCount() {
+		int count = 0;
+		for (Integer result : results.values()) {
+			if (result == UnzipIntentService.RESULT_OK) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of members that have failed or were canceled
+	 */
+	public synchronized int getFailedCount() {
+		return results.size() - getSucceededCount();
+	}
+
+	/**
+	 * @return ids of the members handed to the DownloadManager whose final download status is not known yet
+	 */
+	synchronized long[] getRunningDownloadIds() {
+		long[] ids = new long[requests.size()];
+		int count = 0;
+		for (DownloadScheduler.Request request : requests) {
+			long id = request.getDownloadId();
+			if (id >= 0 && !resolved.contains(id) && !results.containsKey(request)) {
+				ids[count++] = id;
+			}
+		}
+		long[] running = new long[count];
+		System.arraycopy(ids, 0, running, 0, count);
+		return running;
+	}
+
+	private DownloadScheduler.Request getRequest(long downloadId) {
+		for (DownloadScheduler.Request request : requests) {
+			if (request.getDownloadId() == downloadId) {
+				return request;
+			}
+		}
+		return null;
+	}
+
+	private void finish(DownloadScheduler.Request request, int result) {
+		Listener listener;
+		synchronized (this) {
+			if (results.containsKey(request)) {
+				return;
+			}
+			results.put(request, result);
+			if (!isComplete()) {
+				return;
+			}
+			listener = this.listener;
+		}
+		running.remove(this);
+		if (listener != null) {
+			post(listener);
+		}
+	}
+
+	private void post(final Listener listener) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				listener.onBatchComplete(DownloadBatch.this);
+			}
+		});
+	}
+}
@@ -25,22 +25,55 @@ import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class DownloadBroadcastReceiver extends BroadcastReceiver {
 
     private static final String TAG="Downloader";
 
 	public static final int UNZIP_ID = 1;
 
-	private String basePath;
+	private static volatile boolean recovered;
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "DownloadBroadcastReceiver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final Object lock = new Object();
+
+	/**
+	 * Completions received but not processed yet, guarded by {@link #lock}.
+	 */
+	private static final Set<Long> pendingIds = new LinkedHashSet<>();
+
+	private static final List<PendingResult> pendingResults = new ArrayList<>();
 
     public DownloadBroadcastReceiver() {
 
     }
+
+	/**
+	 * @deprecated the target directory is now recorded per download in the {@link DownloadJournal}
+	 */
+	@Deprecated
 	public DownloadBroadcastReceiver(String basePath) {
-		this.basePath = basePath;
 	}
 
-	private void notify(Context context, String message) {
+	private static void notify(Context context, String message) {
 
 		NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
 
@@ -65,45 +98,241 @@ public class DownloadBroadcastReceiver extends BroadcastReceiver {
 
 			long downloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
 
-			if (downloadId >= 0 && Downloader.todoUnzip.contains(downloadId)) {
-
-				DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-
-				Log.d(TAG, "Received download completed " + downloadId);
-
-				DownloadManager.Query query = new DownloadManager.Query();
-				query.setFilterById(downloadId);
-				Cursor cursor = downloadManager.query(query);
-
-				if (cursor != null) {
-					if (cursor.moveToFirst()) {
-						int columnIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-						int status = cursor.getInt(columnIndex);
-						int columnReason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
-						int reason = cursor.getInt(columnReason);
-
-						if (status == DownloadManager.STATUS_SUCCESSFUL) {
-							Intent serviceIntent = new Intent(context, UnzipIntentService.class);
-							serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, downloadId);
-							serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, basePath);
-							context.startService(serviceIntent);
-							Downloader.todoUnzip.remove(downloadId);
-						} else if (status == DownloadManager.STATUS_FAILED) {
-							notify(context, "Fehler:\n" + reason);
-						} else if (status == DownloadManager.STATUS_PAUSED) {
-							notify(context, "Pausiert:\n" + reason);
-						} else if (status == DownloadManager.STATUS_PENDING) {
-							notify(context, "Pending!");
-						} else if (status == DownloadManager.STATUS_RUNNING) {
-							notify(context, "Läuft!");
-						}
+			// the queries and notifications run in the background, the broadcast is kept alive until they are done
+			PendingResult pendingResult = goAsync();
+			boolean schedule;
+			synchronized (lock) {
+				schedule = pendingResults.isEmpty();
+				if (downloadId >= 0) {
+					pendingIds.add(downloadId);
+				}
+				pendingResults.add(pendingResult);
+			}
+			if (schedule) {
+				final Context appContext = context.getApplicationContext();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						processPending(appContext);
 					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Handles all completions received since the last run in one go, completions arriving meanwhile are handled by
+	 * the next run. The single worker thread makes sure each completion is handled once.
+	 */
+	private static void processPending(Context context) {
+		List<Long> downloadIds;
+		List<PendingResult> results;
+		synchronized (lock) {
+			downloadIds = new ArrayList<>(pendingIds);
+			results = new ArrayList<>(pendingResults);
+			pendingIds.clear();
+			pendingResults.clear();
+		}
+
+		try {
+			if (!downloadIds.isEmpty()) {
+				handleCompleted(context, downloadIds);
+			}
 
-					cursor.close();
+			// completions that arrived while the process was dead never reached us
+			if (!recovered) {
+				recover(context);
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Could not process completed downloads " + downloadIds, e);
+		} finally {
+			for (PendingResult result : results) {
+				result.finish();
+			}
+		}
+	}
+
+	private static void handleCompleted(Context context, List<Long> downloadIds) {
+
+		// let the next queued downloads start
+		DownloadScheduler.getInstance(context).onDownloadsFinished(downloadIds);
+
+		DownloadJournal journal = DownloadJournal.getInstance(context);
+
+		// members of a batch tend to complete together, so all of them still running are checked as well, the
+		// broadcasts of the ones resolved here need no query of their own
+		Set<Long> ids = new LinkedHashSet<>();
+		for (long downloadId : downloadIds) {
+			List<DownloadBatch> batches = DownloadBatch.find(downloadId);
+			for (DownloadBatch batch : batches) {
+				for (long id : batch.getRunningDownloadIds()) {
+					ids.add(id);
 				}
+			}
+			if (batches.isEmpty() && journal.contains(downloadId)) {
+				ids.add(downloadId);
+			}
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+
+		Log.d(TAG, "Received downloads completed " + downloadIds);
+
+		long[] queryIds = new long[ids.size()];
+		int i = 0;
+		for (long id : ids) {
+			queryIds[i++] = id;
+		}
+
+		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+		DownloadManager.Query query = new DownloadManager.Query();
+		query.setFilterById(queryIds);
+		Cursor cursor = downloadManager.query(query);
+
+		if (cursor != null) {
+			try {
+				int idIndex = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+				int columnIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+				int columnReason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+				int sizeIndex = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+				while (cursor.moveToNext()) {
+					long id = cursor.getLong(idIndex);
+					int status = cursor.getInt(columnIndex);
+					int reason = cursor.getInt(columnReason);
+
+					if (status == DownloadManager.STATUS_SUCCESSFUL) {
+						completed(context, journal, id, cursor.getLong(sizeIndex));
+					} else if (status == DownloadManager.STATUS_FAILED) {
+						failed(journal, id);
+						notify(context, "Fehler:\n" + reason);
+					} else if (!downloadIds.contains(id)) {
+						// another member of a batch, still busy
+					} else if (status == DownloadManager.STATUS_PAUSED) {
+						notify(context, "Pausiert:\n" + reason);
+					} else if (status == DownloadManager.STATUS_PENDING) {
+						notify(context, "Pending!");
+					} else if (status == DownloadManager.STATUS_RUNNING) {
+						notify(context, "Läuft!");
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the single worker thread of the receiver, shared with the {@link DownloadScheduler}
+	 */
+	static Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Runs {@link #recover(Context)} on the worker thread of the receiver.
+	 */
+	static void recoverInBackground(Context context) {
+		final Context appContext = context.getApplicationContext();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				recover(appContext);
+			}
+		});
+	}
+
+	/**
+	 * Processes all journaled downloads that completed without being handled, e.g. because the process was killed
+	 * before the completion broadcast arrived. Jobs of downloads the DownloadManager no longer knows are dropped.
+	 */
+	public static void recover(Context context) {
+		recovered = true;
+
+		DownloadJournal journal = DownloadJournal.getInstance(context);
+		Collection<DownloadJournal.Job> jobs = journal.getJobs();
+		if (jobs.isEmpty()) {
+			return;
+		}
+
+		long[] ids = new long[jobs.size()];
+		int i = 0;
+		for (DownloadJournal.Job job : jobs) {
+			ids[i++] = job.getDownloadId();
+		}
+
+		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+		DownloadManager.Query query = new DownloadManager.Query();
+		query.setFilterById(ids);
+		Cursor cursor = downloadManager.query(query);
+		if (cursor == null) {
+			return;
+		}
+
+		Set<Long> known = new HashSet<>();
+		try {
+			int idIndex = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+			int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+			int sizeIndex = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+			while (cursor.moveToNext()) {
+				long downloadId = cursor.getLong(idIndex);
+				known.add(downloadId);
+
+				int status = cursor.getInt(statusIndex);
+				if (status == DownloadManager.STATUS_SUCCESSFUL) {
+					completed(context, journal, downloadId, cursor.getLong(sizeIndex));
+				} else if (status == DownloadManager.STATUS_FAILED) {
+					failed(journal, downloadId);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		for (long id : ids) {
+			if (!known.contains(id)) {
+				journal.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Claims a successful download and starts its job, only the first caller for a download gets to start it.
+	 */
+	private static void completed(Context context, DownloadJournal journal, long downloadId, long size) {
+		DownloadBatch.onDownloadSucceeded(downloadId);
+		DownloadJournal.Job job = journal.remove(downloadId);
+		if (job != null) {
+			Log.d(TAG, "Starting job of download " + downloadId);
+			startJob(context, job, size);
+		}
+	}
+
+	private static void failed(DownloadJournal journal, long downloadId) {
+		journal.remove(downloadId);
+		DownloadBatch.onDownloadFailed(downloadId);
+	}
 
+	private static void startJob(Context context, DownloadJournal.Job job, long size) {
+		boolean update = DownloadJournal.ACTION_UPDATE.equals(job.getAction());
+		if (update || DownloadJournal.ACTION_UNZIP.equals(job.getAction())) {
+			Intent serviceIntent = new Intent(context, UnzipIntentService.class);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, job.getDownloadId());
+			serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, job.getTargetPath());
+			serviceIntent.putExtra(UnzipIntentService.INTENT_DELETE_REMOVED, update);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_ARCHIVE_SIZE, size);
+			if (job.getMode() != null) {
+				serviceIntent.putExtra(UnzipIntentService.INTENT_INSTALL_MODE, job.getMode());
 			}
+			context.startService(serviceIntent);
+		} else if (DownloadJournal.ACTION_KEEP.equals(job.getAction())) {
+			Intent serviceIntent = new Intent(context, UnzipIntentService.class);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_DOWNLOAD_ID, job.getDownloadId());
+			serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, job.getTargetPath());
+			serviceIntent.putExtra(UnzipIntentService.INTENT_KEEP_ARCHIVE, true);
+			serviceIntent.putExtra(UnzipIntentService.INTENT_ARCHIVE_SIZE, size);
+			context.startService(serviceIntent);
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent list of downloads that still need to be processed once the DownloadManager reports them as completed.
+ * <p>
+ * Lookups go to an in-memory map, every change is appended as a single line to a journal file, so a job survives the
+ * death of the process and is picked up again by {@link DownloadBroadcastReceiver#recover(Context)}. The journal is
+ * read and compacted on first use, which is on the worker thread of the {@link DownloadBroadcastReceiver}, and
+ * compacted again whenever it contains more removed than live jobs.
+ */
+public class DownloadJournal {
+
+	private static final String TAG = "Downloader";
+
+	private static final String FILE_NAME = "download-journal";
+
+	private static final char PUT = '+';
+	private static final char REMOVE = '-';
+	private static final char SEPARATOR = '\t';
+
+	private static final int MIN_COMPACT_RECORDS = 32;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The completed download is an archive to extract into the target directory.
+	 */
+	public static final String ACTION_UNZIP = "unzip";
+
+	/**
+	 * Like {@link #ACTION_UNZIP}, but files of the previous installation that are missing in the archive are deleted.
+	 */
+	public static final String ACTION_UPDATE = "update";
+
+	/**
+	 * The completed download is an archive kept as it is in the target directory, its entries are read on demand
+	 * through an {@link ArchiveIndex}.
+	 */
+	public static final String ACTION_KEEP = "keep";
+
+	public static class Job {
+
+		private final long downloadId;
+		private final String action;
+		private final String targetPath;
+		private final InstallMode mode;
+
+		public Job(long downloadId, String action, String targetPath) {
+			this(downloadId, action, targetPath, null);
+		}
+
+		/**
+		 * @param mode
+		 *            how the archive is installed, <code>null</code> for the current settings of the
+		 *            {@link UnzipIntentService} when the job is started
+		 */
+		public Job(long downloadId, String action, String targetPath, InstallMode mode) {
+			if (action.indexOf(SEPARATOR) >= 0 || action.indexOf('\n') >= 0 || targetPath.indexOf(SEPARATOR) >= 0
+					|| targetPath.indexOf('\n') >= 0) {
+				throw new IllegalArgumentException("Invalid job " + action + " " + targetPath);
+			}
+			this.downloadId = downloadId;
+			this.action = action;
+			this.targetPath = targetPath;
+			this.mode = mode;
+		}
+
+		public long getDownloadId() {
+			return downloadId;
+		}
+
+		public String getAction() {
+			return action;
+		}
+
+		public String getTargetPath() {
+			return targetPath;
+		}
+
+		public InstallMode getMode() {
+			return mode;
+		}
+
+		String format() {
+			return Long.toString(downloadId) + SEPARATOR + action + SEPARATOR + targetPath + SEPARATOR
+					+ InstallMode.format(mode);
+		}
+
+		static Job parse(String record) {
+			String[] fields = record.split(String.valueOf(SEPARATOR), 3 + InstallMode.FIELD_COUNT);
+			// records written before the install mode was recorded end with the target path
+			InstallMode mode = fields.length > 3 ? InstallMode.parse(fields, 3) : null;
+			return new Job(Long.parseLong(fields[0]), fields[1], fields[2], mode);
+		}
+	}
+
+	private static DownloadJournal instance;
+
+	private final File file;
+
+	private final ConcurrentMap<Long, Job> jobs = new ConcurrentHashMap<>();
+
+	private int records;
+
+	private boolean loaded;
+
+	/**
+	 * Returns right away, the journal is read in the background.
+	 */
+	public static synchronized DownloadJournal getInstance(Context context) {
+		if (instance == null) {
+			final DownloadJournal journal = new DownloadJournal(new File(context.getApplicationContext()
+					.getFilesDir(), FILE_NAME));
+			DownloadBroadcastReceiver.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					journal.ensureLoaded();
+				}
+			});
+			instance = journal;
+		}
+		return instance;
+	}
+
+	DownloadJournal(File file) {
+		this.file = file;
+	}
+
+	public Job get(long downloadId) {
+		ensureLoaded();
+		return jobs.get(downloadId);
+	}
+
+	public boolean contains(long downloadId) {
+		ensureLoaded();
+		return jobs.containsKey(downloadId);
+	}
+
+	public Collection<Job> getJobs() {
+		ensureLoaded();
+		return new ArrayList<>(jobs.values());
+	}
+
+	public synchronized void put(Job job) {
+		ensureLoaded();
+		jobs.put(job.getDownloadId(), job);
+		append(PUT + job.format());
+	}
+
+	/**
+	 * Removes the job of the given download. Only one of several concurrent callers receives the job, which makes this
+	 * the place to claim a completed download for processing.
+	 *
+	 * @return the removed job or <code>null</code> if there was none
+	 */
+	public synchronized Job remove(long downloadId) {
+		ensureLoaded();
+		Job job = jobs.remove(downloadId);
+		if (job != null) {
+			append(REMOVE + Long.toString(downloadId));
+			if (records >= MIN_COMPACT_RECORDS && records > 2 * jobs.size()) {
+				compact();
+			}
+		}
+		return job;
+	}
+
+	/**
+	 * Reads the journal on first use.
+	 */
+	private synchronized void ensureLoaded() {
+		if (!loaded) {
+			loaded = true;
+			load();
+		}
+	}
+
+	private void load() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				records++;
+				try {
+					if (line.charAt(0) == PUT) {
+						Job job = Job.parse(line.substring(1));
+						jobs.put(job.getDownloadId(), job);
+					} else if (line.charAt(0) == REMOVE) {
+						jobs.remove(Long.parseLong(line.substring(1)));
+					}
+				} catch (RuntimeException e) {
+					// a record cut off by the death of the process, ignore it
+					Log.w(TAG, "Skipping invalid journal record " + line);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// nothing recorded yet
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read download journal", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		if (records > jobs.size()) {
+			compact();
+		}
+	}
+
+	private void append(String record) {
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file, true);
+			out.write((record + '\n').getBytes(UTF_8));
+			records++;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write download journal", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the live jobs only. The new journal replaces the old one by a rename, so a crash
+	 * leaves either of both intact.
+	 */
+	private void compact() {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			StringBuilder content = new StringBuilder();
+			for (Job job : jobs.values()) {
+				content.append(PUT).append(job.format()).append('\n');
+			}
+			out.write(content.toString().getBytes(UTF_8));
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (temp.renameTo(file)) {
+				records = jobs.size();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not compact download journal", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Hands downloads to the DownloadManager in the order of their priority, keeping only a few of them running at the
+ * same time. Instead of sharing the bandwidth among all queued packages, the most wanted packages finish first and
+ * become usable early.
+ * <p>
+ * Queued and running requests are saved to a file, so the queue survives the death of the process. A slot is freed
+ * by {@link #onDownloadFinished(long)} when the DownloadManager reports a download as completed.
+ * <p>
+ * The file is read, downloads are started and the queue is saved on a background executor without holding the lock
+ * of the scheduler, the calling thread only changes the queue in memory. Requests, promotions and finished downloads
+ * reported before the saved queue has been read are merged into it.
+ * <p>
+ * A request for a url that is already waiting or downloading with the same action and target joins that request
+ * instead of downloading the archive a second time.
+ */
+public class DownloadScheduler {
+
+	private static final String TAG = "Downloader";
+
+	private static final String FILE_NAME = "download-queue";
+
+	private static final char SEPARATOR = '\t';
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static final int PRIORITY_LOW = -10;
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_HIGH = 10;
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+	/**
+	 * Higher priorities first, within the same priority the older request first.
+	 */
+	private static final Comparator<Request> ORDER = new Comparator<Request>() {
+		@Override
+		public int compare(Request lhs, Request rhs) {
+			if (lhs.priority != rhs.priority) {
+				return lhs.priority > rhs.priority ? -1 : 1;
+			}
+			return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+		}
+	};
+
+	public static class Request {
+
+		private final String url;
+		private final String action;
+		private final String targetPath;
+		private final InstallMode mode;
+		private int priority;
+		private long sequence;
+		private volatile long downloadId = -1;
+
+		Request(String url, String action, String targetPath, InstallMode mode, int priority, long sequence) {
+			if (url.indexOf(SEPARATOR) >= 0 || url.indexOf('\n') >= 0
+					|| (action != null && (action.indexOf(SEPARATOR) >= 0 || action.indexOf('\n') >= 0))
+					|| targetPath.indexOf(SEPARATOR) >= 0 || targetPath.indexOf('\n') >= 0) {
+				throw new IllegalArgumentException("Invalid request " + url + " " + action + " " + targetPath);
+			}
+			this.url = url;
+			this.action = action;
+			this.targetPath = targetPath;
+			this.mode = mode;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return the {@link DownloadJournal} action to run once the download has completed, <code>null</code> for
+		 *         none
+		 */
+		public String getAction() {
+			return action;
+		}
+
+		public String getTargetPath() {
+			return targetPath;
+		}
+
+		/**
+		 * @return how the archive is installed, <code>null</code> for the settings of the {@link UnzipIntentService}
+		 *         when the job is started
+		 */
+		public InstallMode getMode() {
+			return mode;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * @return the id assigned by the DownloadManager or -1 while the request is queued
+		 */
+		public long getDownloadId() {
+			return downloadId;
+		}
+
+		boolean matches(String action, String targetPath) {
+			return this.targetPath.equals(targetPath)
+					&& (action != null ? action.equals(this.action) : this.action == null);
+		}
+
+		String format() {
+			return Long.toString(downloadId) + SEPARATOR + priority + SEPARATOR + sequence + SEPARATOR
+					+ (action != null ? action : "") + SEPARATOR + targetPath + SEPARATOR + InstallMode.format(mode)
+					+ SEPARATOR + url;
+		}
+
+		static Request parse(String record) {
+			String[] fields = record.split(String.valueOf(SEPARATOR), 6 + InstallMode.FIELD_COUNT);
+			// records written before the install mode was recorded have no fields for it
+			InstallMode mode = fields.length > 6 ? InstallMode.parse(fields, 5) : null;
+			Request request = new Request(fields[fields.length - 1], fields[3].length() > 0 ? fields[3] : null,
+					fields[4], mode, Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+			request.downloadId = Long.parseLong(fields[0]);
+			return request;
+		}
+	}
+
+	private static DownloadScheduler instance;
+
+	private final File file;
+
+	private final DownloadManager downloadManager;
+
+	private final DownloadJournal journal;
+
+	private final Executor executor;
+
+	private final PriorityQueue<Request> queue = new PriorityQueue<>(11, ORDER);
+
+	private final Map<Long, Request> inFlight = new HashMap<>();
+
+	/**
+	 * Queued and running requests by their url.
+	 */
+	private final Map<String, Request> byUrl = new HashMap<>();
+
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+	private long nextSequence;
+
+	/**
+	 * Sequence of the request promoted last, counting down so the latest promotion comes first.
+	 */
+	private long frontSequence;
+
+	/**
+	 * Whether the saved queue has been read, nothing is started or saved before.
+	 */
+	private boolean loaded;
+
+	/**
+	 * Urls promoted and downloads finished before the saved queue has been read.
+	 */
+	private final Set<String> earlyPromotions = new HashSet<>();
+
+	private final Set<Long> earlyFinished = new HashSet<>();
+
+	/**
+	 * The request being handed to the DownloadManager, it holds a slot but is neither queued nor in flight.
+	 */
+	private Request starting;
+
+	private boolean syncScheduled;
+
+	/**
+	 * Runs on the executor only, so the file and the DownloadManager are never used by two threads at once.
+	 */
+	private final Runnable sync = new Runnable() {
+		@Override
+		public void run() {
+			boolean load;
+			synchronized (DownloadScheduler.this) {
+				syncScheduled = false;
+				load = !loaded;
+			}
+			if (load) {
+				List<Request> saved = read();
+				Set<Long> running = queryRunning(saved);
+				synchronized (DownloadScheduler.this) {
+					merge(saved, running);
+					loaded = true;
+				}
+			}
+			dispatch();
+			save();
+		}
+	};
+
+	public static synchronized DownloadScheduler getInstance(Context context) {
+		if (instance == null) {
+			Context appContext = context.getApplicationContext();
+			instance = new DownloadScheduler(new File(appContext.getFilesDir(), FILE_NAME),
+					(DownloadManager) appContext.getSystemService(Context.DOWNLOAD_SERVICE),
+					DownloadJournal.getInstance(appContext), DownloadBroadcastReceiver.getExecutor());
+		}
+		return instance;
+	}
+
+	DownloadScheduler(File file, DownloadManager downloadManager, DownloadJournal journal, Executor executor) {
+		this.file = file;
+		this.downloadManager = downloadManager;
+		this.journal = journal;
+		this.executor = executor;
+		scheduleSync();
+	}
+
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            maximum number of downloads running at the same time, defaults to {@value #DEFAULT_MAX_IN_FLIGHT}
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		scheduleSync();
+	}
+
+	/**
+	 * Queues a download, it is handed to the DownloadManager as soon as a slot is free and no request of a higher
+	 * priority is waiting. If the same download is waiting or running already, its request is returned instead.
+	 *
+	 * @param action
+	 *            the {@link DownloadJournal} action to run once the download has completed, <code>null</code> for
+	 *            none
+	 * @param priority
+	 *            one of the <code>PRIORITY</code> constants or any other value, higher priorities are started first
+	 */
+	public Request enqueue(String url, String action, String targetPath, int priority) {
+		return enqueue(url, action, targetPath, null, priority);
+	}
+
+	/**
+	 * @param mode
+	 *            how the archive is installed, <code>null</code> for the settings of the {@link UnzipIntentService}
+	 *            when the job is started
+	 * @see #enqueue(String, String, String, int)
+	 */
+	public synchronized Request enqueue(String url, String action, String targetPath, InstallMode mode,
+			int priority) {
+		Request request = join(url, action, targetPath, priority);
+		if (request == null) {
+			request = new Request(url, action, targetPath, mode, priority, nextSequence++);
+			add(request);
+		}
+		scheduleSync();
+		return request;
+	}
+
+	/**
+	 * Queues several downloads of the same priority at once, see {@link #enqueue(String, String, String, int)}.
+	 */
+	public List<Request> enqueue(Collection<String> urls, String action, String targetPath, int priority) {
+		return enqueue(urls, action, targetPath, null, priority);
+	}
+
+	/**
+	 * Queues several downloads of the same priority at once, see {@link #enqueue(String, String, String, InstallMode,
+	 * int)}.
+	 */
+	public synchronized List<Request> enqueue(Collection<String> urls, String action, String targetPath,
+			InstallMode mode, int priority) {
+		List<Request> requests = new ArrayList<>(urls.size());
+		for (String url : urls) {
+			Request request = join(url, action, targetPath, priority);
+			if (request == null) {
+				request = new Request(url, action, targetPath, mode, priority, nextSequence++);
+				add(request);
+			}
+			requests.add(request);
+		}
+		scheduleSync();
+		return requests;
+	}
+
+	/**
+	 * Moves a queued download in front of all others, so it is started in the next free slot. While the saved queue
+	 * is still being read, the promotion is applied to it once it has been read.
+	 *
+	 * @return <code>false</code> if no download of the given url is waiting
+	 */
+	public synchronized boolean promote(String url) {
+		for (Request request : queue) {
+			if (request.url.equals(url)) {
+				moveToFront(request);
+				scheduleSync();
+				return true;
+			}
+		}
+		if (!loaded) {
+			earlyPromotions.add(url);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Frees the slot of a download that has completed, successfully or not, and starts the next queued one.
+	 */
+	public void onDownloadFinished(long downloadId) {
+		onDownloadsFinished(Collections.singleton(downloadId));
+	}
+
+	/**
+	 * Frees the slots of several completed downloads at once, see {@link #onDownloadFinished(long)}.
+	 */
+	public synchronized void onDownloadsFinished(Collection<Long> downloadIds) {
+		if (!loaded) {
+			earlyFinished.addAll(downloadIds);
+			return;
+		}
+		boolean freed = false;
+		for (long downloadId : downloadIds) {
+			Request request = inFlight.remove(downloadId);
+			if (request != null) {
+				forget(request);
+				freed = true;
+			}
+		}
+		if (freed) {
+			scheduleSync();
+		}
+	}
+
+	/**
+	 * @return number of waiting downloads, those of the saved queue only once it has been read
+	 */
+	public synchronized int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of running downloads, those of the saved queue only once it has been read
+	 */
+	public synchronized int getInFlightCount() {
+		return inFlight.size() + (starting != null ? 1 : 0);
+	}
+
+	/**
+	 * @return the waiting or running request of the same download, raised to the given priority if it is still
+	 *         waiting, or <code>null</code> if there is none
+	 */
+	private Request join(String url, String action, String targetPath, int priority) {
+		Request request = byUrl.get(url);
+		if (request == null || !request.matches(action, targetPath)) {
+			return null;
+		}
+		// a request being started is no longer queued
+		if (request.downloadId < 0 && priority > request.priority && queue.remove(request)) {
+			request.priority = priority;
+			queue.add(request);
+		}
+		Log.d(TAG, "Joined " + (request.downloadId < 0 ? "queued" : "running") + " download of " + url);
+		return request;
+	}
+
+	private void add(Request request) {
+		if (request.downloadId >= 0) {
+			inFlight.put(request.downloadId, request);
+		} else {
+			queue.add(request);
+		}
+		byUrl.put(request.url, request);
+	}
+
+	private void forget(Request request) {
+		if (byUrl.get(request.url) == request) {
+			byUrl.remove(request.url);
+		}
+	}
+
+	private void moveToFront(Request request) {
+		queue.remove(request);
+		request.priority = Integer.MAX_VALUE;
+		request.sequence = --frontSequence;
+		queue.add(request);
+	}
+
+	/**
+	 * Starts the queued downloads and saves the queue on the executor, once for all changes made until it runs.
+	 */
+	private void scheduleSync() {
+		if (!syncScheduled) {
+			syncScheduled = true;
+			executor.execute(sync);
+		}
+	}
+
+	/**
+	 * Hands queued requests to the DownloadManager while slots are free. The calls to the DownloadManager and the
+	 * journal are made without holding the lock.
+	 */
+	private void dispatch() {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				if (inFlight.size() >= maxInFlight || queue.isEmpty()) {
+					return;
+				}
+				request = queue.poll();
+				starting = request;
+			}
+			long downloadId;
+			try {
+				downloadId = downloadManager.enqueue(new DownloadManager.Request(Uri.parse(request.url)));
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					starting = null;
+					queue.add(request);
+				}
+				throw e;
+			}
+			if (request.action != null) {
+				journal.put(new DownloadJournal.Job(downloadId, request.action, request.targetPath, request.mode));
+			}
+			synchronized (this) {
+				starting = null;
+				request.downloadId = downloadId;
+				inFlight.put(downloadId, request);
+			}
+			Log.d(TAG, "Started download " + downloadId + " of " + request.url);
+		}
+	}
+
+	/**
+	 * @return the ids of the saved running downloads the DownloadManager is still busy with, <code>null</code> if
+	 *         unknown
+	 */
+	private Set<Long> queryRunning(List<Request> saved) {
+		List<Long> ids = new ArrayList<>();
+		for (Request request : saved) {
+			if (request.downloadId >= 0) {
+				ids.add(request.downloadId);
+			}
+		}
+		if (ids.isEmpty()) {
+			return Collections.emptySet();
+		}
+		long[] filter = new long[ids.size()];
+		for (int i = 0; i < filter.length; i++) {
+			filter[i] = ids.get(i);
+		}
+
+		DownloadManager.Query query = new DownloadManager.Query();
+		query.setFilterById(filter);
+		query.setFilterByStatus(DownloadManager.STATUS_PENDING | DownloadManager.STATUS_RUNNING
+				| DownloadManager.STATUS_PAUSED);
+		Cursor cursor = downloadManager.query(query);
+		if (cursor == null) {
+			return null;
+		}
+		Set<Long> running = new HashSet<>();
+		try {
+			int idIndex = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+			while (cursor.moveToNext()) {
+				running.add(cursor.getLong(idIndex));
+			}
+		} finally {
+			cursor.close();
+		}
+		return running;
+	}
+
+	/**
+	 * @return the requests of the saved queue
+	 */
+	private List<Request> read() {
+		List<Request> saved = new ArrayList<>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				try {
+					saved.add(Request.parse(line));
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Skipping invalid queue record " + line);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// nothing queued yet
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read download queue", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Merges the saved queue into the requests made before it had been read. Those are queued behind the saved ones,
+	 * a request for a saved download takes its place, as the caller holds on to the request it got. Running downloads
+	 * that have ended while the process was dead free their slots.
+	 *
+	 * @param running
+	 *            ids of the saved downloads still running, <code>null</code> if unknown
+	 */
+	private void merge(List<Request> saved, Set<Long> running) {
+		List<Request> early = new ArrayList<>(queue);
+		long earlyNext = nextSequence;
+		long earlyFront = frontSequence;
+		queue.clear();
+		byUrl.clear();
+		nextSequence = 0;
+		frontSequence = 0;
+
+		for (Request request : saved) {
+			if (request.downloadId >= 0
+					&& ((running != null && !running.contains(request.downloadId)) || earlyFinished
+							.contains(request.downloadId))) {
+				continue;
+			}
+			add(request);
+			nextSequence = Math.max(nextSequence, request.sequence + 1);
+			frontSequence = Math.min(frontSequence, request.sequence);
+		}
+
+		for (Request request : early) {
+			Request savedRequest = byUrl.get(request.url);
+			if (savedRequest != null && savedRequest.matches(request.action, request.targetPath)) {
+				if (savedRequest.downloadId >= 0) {
+					inFlight.remove(savedRequest.downloadId);
+				} else {
+					queue.remove(savedRequest);
+				}
+				request.downloadId = savedRequest.downloadId;
+				request.sequence = savedRequest.sequence;
+				request.priority = Math.max(request.priority, savedRequest.priority);
+			} else {
+				// promoted requests count down from zero, the others up
+				request.sequence += request.sequence < 0 ? frontSequence : nextSequence;
+			}
+			add(request);
+		}
+		nextSequence += earlyNext;
+		frontSequence += earlyFront;
+
+		for (String url : earlyPromotions) {
+			Request request = byUrl.get(url);
+			if (request != null && request.downloadId < 0) {
+				moveToFront(request);
+			}
+		}
+		earlyPromotions.clear();
+		earlyFinished.clear();
+	}
+
+	/**
+	 * Rewrites the queue file, the new file replaces the old one by a rename, so a crash leaves either of both intact.
+	 * Only the content is taken under the lock.
+	 */
+	private void save() {
+		StringBuilder content = new StringBuilder();
+		synchronized (this) {
+			List<Request> requests = new ArrayList<>(inFlight.values());
+			requests.addAll(queue);
+			for (Request request : requests) {
+				content.append(request.format()).append('\n');
+			}
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(content.toString().getBytes(UTF_8));
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				Log.e(TAG, "Could not replace download queue " + file);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write download queue", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
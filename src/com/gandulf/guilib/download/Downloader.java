@@ -16,48 +16,224 @@
 package com.gandulf.guilib.download;
 
 import android.app.DownloadManager;
-import android.app.DownloadManager.Request;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
 import android.content.IntentFilter;
-import android.net.Uri;
 
 import java.io.File;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
+import java.util.Collection;
 
 public class Downloader {
 
-	public static List<Long> todoUnzip = new LinkedList<>();
-
-	private DownloadManager downloadManager;
+	private DownloadScheduler scheduler;
 
 	private BroadcastReceiver receiver;
 
+	private Context context;
+
+	private String basePath;
+
     public static Downloader getInstance(File baseDir, Context context) {
         return new Downloader(baseDir.getAbsolutePath(), context);
     }
 
     Downloader(final String basePath, Context context) {
 
-        downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        this.context = context.getApplicationContext();
+        this.basePath = basePath;
 
-        receiver = new DownloadBroadcastReceiver(basePath);
+        scheduler = DownloadScheduler.getInstance(context);
+
+        receiver = new DownloadBroadcastReceiver();
 
         context.getApplicationContext().registerReceiver(receiver,
                 new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+
+        // pick up downloads that completed while the process was not running
+        DownloadBroadcastReceiver.recoverInBackground(this.context);
     }
 
     public void download(String path,boolean unzip) {
-        Request request = new Request(Uri.parse(path));
-        if (unzip)
-            todoUnzip.add(downloadManager.enqueue(request));
-        else
-            downloadManager.enqueue(request);
+        download(path, unzip, DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queues a download, at most {@link #setMaxConcurrentDownloads(int) a few} downloads run at the same time and
+     * the ones of the highest priority are started first. Calling it again while the url is still waiting or
+     * downloading only raises the priority of the queued download, the archive is fetched and extracted once.
+     *
+     * @param priority
+     *            one of the <code>DownloadScheduler.PRIORITY</code> constants
+     */
+    public void download(String path, boolean unzip, int priority) {
+        scheduler.enqueue(path, unzip ? DownloadJournal.ACTION_UNZIP : null, basePath,
+                UnzipIntentService.getInstallMode(), priority);
     }
 
     public void download(String path) {
         download(path,true);
     }
 
+    /**
+     * Queues a download whose archive is verified while it is extracted, see {@link IntegrityManifest}. A mismatch
+     * fails the extraction.
+     *
+     * @param expected
+     *            digests the archive and its entries must have
+     * @throws IOException
+     *             if the digests could not be saved, nothing is queued then
+     */
+    public void download(String path, int priority, IntegrityManifest expected) throws IOException {
+        UnzipIntentService.setExpectedDigests(context, path, expected);
+        download(path, true, priority);
+    }
+
+    /**
+     * Downloads and extracts several packages together.
+     *
+     * @return handle reporting the completion of all packages
+     */
+    public DownloadBatch download(Collection<String> paths) {
+        return download(paths, true, DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    public DownloadBatch download(Collection<String> paths, boolean unzip, int priority) {
+        return new DownloadBatch(scheduler.enqueue(paths, unzip ? DownloadJournal.ACTION_UNZIP : null, basePath,
+                UnzipIntentService.getInstallMode(), priority));
+    }
+
+    /**
+     * Downloads a zip archive and keeps it as it is instead of extracting it, for packages of which only a few files
+     * are ever read. The files are read on demand through {@link #openArchive(String)}.
+     */
+    public void downloadArchive(String path) {
+        scheduler.enqueue(path, DownloadJournal.ACTION_KEEP, basePath, DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Opens an archive kept by {@link #downloadArchive(String)}. The index should be kept open while files are read,
+     * as it caches the inflated files, and closed when done. A newer version of the archive replaces the file, an
+     * index opened before keeps reading the old one.
+     *
+     * @throws java.io.FileNotFoundException
+     *             if the archive has not been downloaded yet
+     */
+    public ArchiveIndex openArchive(String path) throws IOException {
+        return new ArchiveIndex(UnzipIntentService.getArchiveFile(new File(basePath), path));
+    }
+
+    /**
+     * Downloads an updated version of a package installed before. Only changed entries are written and files that are
+     * no longer part of the package are deleted.
+     */
+    public void update(String path) {
+        scheduler.enqueue(path, DownloadJournal.ACTION_UPDATE, basePath, UnzipIntentService.getInstallMode(),
+                DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Moves the queued download of the given url in front of all others, e.g. because the user is waiting for it.
+     *
+     * @return <code>false</code> if the download is not waiting, because it has been started already or is unknown
+     */
+    public boolean promote(String path) {
+        return scheduler.promote(path);
+    }
+
+    /**
+     * @param max
+     *            maximum number of downloads running at the same time, defaults to
+     *            {@value DownloadScheduler#DEFAULT_MAX_IN_FLIGHT}
+     */
+    public void setMaxConcurrentDownloads(int max) {
+        scheduler.setMaxInFlight(max);
+    }
+
+    /**
+     * @param max
+     *            maximum number of downloaded archives extracted at the same time, defaults to
+     *            {@value UnzipIntentService#DEFAULT_MAX_CONCURRENT_JOBS}
+     */
+    public void setMaxConcurrentExtractions(int max) {
+        UnzipIntentService.setMaxConcurrentJobs(max);
+    }
+
+    /**
+     * Stores identical files of all packages only once, see {@link ContentStore}.
+     *
+     * @param storeDir
+     *            directory of the store on the same file system as the packages, <code>null</code> to write every file
+     */
+    public void setContentStore(File storeDir) {
+        UnzipIntentService.setContentStore(storeDir != null ? new ContentStore(storeDir) : null);
+    }
+
+    /**
+     * @param staged
+     *            whether packages are extracted next to the installed files and replace them at once, so readers
+     *            never see a half updated directory. Files must then be read from {@link #getInstallDir()}. Applies to
+     *            downloads queued from now on, like the other install settings.
+     */
+    public void setStagedInstalls(boolean staged) {
+        UnzipIntentService.setStagedInstalls(staged);
+    }
+
+    /**
+     * @param generator
+     *            creates thumbnails of the images of every package while it is extracted, <code>null</code> for none
+     */
+    public void setThumbnailGenerator(ThumbnailGenerator generator) {
+        UnzipIntentService.setThumbnailGenerator(generator);
+    }
+
+    /**
+     * @param preallocate
+     *            whether large files are allocated as a whole before they are written, enabled by default. A full
+     *            storage is detected before an archive is extracted either way.
+     */
+    public void setPreallocateFiles(boolean preallocate) {
+        UnzipIntentService.setPreallocateFiles(preallocate);
+    }
+
+    /**
+     * @return the directory holding the installed packages, which changes with every staged installation
+     */
+    public File getInstallDir() {
+        return StagedInstall.getInstance(new File(basePath)).getCurrentDir();
+    }
+
+    /**
+     * Downloads the archive at the given http(s) url and extracts it while it is being transferred, bypassing the
+     * DownloadManager. The result is announced with {@link UnzipIntentService#ACTION_UNZIP_COMPLETE}.
+     */
+    public void downloadStreaming(String path) {
+        Intent serviceIntent = new Intent(context, UnzipIntentService.class);
+        serviceIntent.putExtra(UnzipIntentService.INTENT_SOURCE_URL, path);
+        serviceIntent.putExtra(UnzipIntentService.INTENT_OUTPUT_URI, basePath);
+        serviceIntent.putExtra(UnzipIntentService.INTENT_INSTALL_MODE, UnzipIntentService.getInstallMode());
+        context.startService(serviceIntent);
+    }
+
+    /**
+     * Like {@link #downloadStreaming(String)}, verifying the archive while it is extracted.
+     *
+     * @throws IOException
+     *             if the digests could not be saved, nothing is started then
+     */
+    public void downloadStreaming(String path, IntegrityManifest expected) throws IOException {
+        UnzipIntentService.setExpectedDigests(context, path, expected);
+        downloadStreaming(path);
+    }
+
+    /**
+     * @param listener
+     *            receives the totals and timings of every extraction of this process, see
+     *            {@link UnzipIntentService#setMetricsListener(UnzipIntentService.MetricsListener)}
+     */
+    public void setMetricsListener(UnzipIntentService.MetricsListener listener) {
+        UnzipIntentService.setMetricsListener(listener);
+    }
+
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records every entry that has been written and verified completely, so an interrupted extraction can skip these
+ * entries when it is run again. Each entry is identified by its name, size and CRC and appended as one line once its
+ * file is closed; an entry cut off in the middle is therefore never recorded and gets written again.
+ */
+final class ExtractionCheckpoint {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	private final Set<String> completed = new HashSet<>();
+
+	private OutputStream out;
+
+	private ExtractionCheckpoint(File file) {
+		this.file = file;
+	}
+
+	static ExtractionCheckpoint open(File file) throws IOException {
+		ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(file);
+		checkpoint.load();
+		checkpoint.out = new FileOutputStream(file, true);
+		return checkpoint;
+	}
+
+	private void load() throws IOException {
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				completed.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the entry has been completed by an earlier run and its file is still intact
+	 */
+	boolean isComplete(ArchiveEntry entry, File target) {
+		return !completed.isEmpty() && completed.contains(format(entry)) && target.length() == entry.getSize();
+	}
+
+	synchronized void record(ArchiveEntry entry) throws IOException {
+		out.write((format(entry) + '\n').getBytes(UTF_8));
+	}
+
+	void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Forgets all progress, called once the whole archive has been extracted.
+	 */
+	void delete() {
+		close();
+		file.delete();
+	}
+
+	private static String format(ArchiveEntry entry) {
+		return Long.toHexString(entry.getCrc()) + '\t' + entry.getSize() + '\t' + entry.getName();
+	}
+}
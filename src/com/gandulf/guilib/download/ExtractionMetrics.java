@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Totals and timings of one extraction. Phases running on several worker threads at once add up their time, so the
+ * sum of the phases may exceed the wall time.
+ */
+public class ExtractionMetrics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Phase {
+		/**
+		 * Reading and inflating entry data from the archive.
+		 */
+		INFLATE,
+		/**
+		 * Writing extracted data to the files.
+		 */
+		WRITE,
+		/**
+		 * Saving the install manifest durably.
+		 */
+		FSYNC,
+		/**
+		 * Creating and checking directories.
+		 */
+		DIRECTORIES,
+		/**
+		 * Reporting to the observers, including the progress notification.
+		 */
+		NOTIFY,
+		/**
+		 * Scanning the written media files after the extraction.
+		 */
+		MEDIA_SCAN
+	}
+
+	/**
+	 * Upper bounds of the latency histogram buckets in microseconds, one more bucket takes all slower entries.
+	 */
+	private static final long[] BUCKET_BOUNDS_MICROS = { 100, 1000, 10000, 100000, 1000000 };
+
+	private final long bytesIn;
+	private final long bytesOut;
+	private final int entryCount;
+	private final int filesWritten;
+	private final long wallTimeNanos;
+	private final long[] phaseNanos;
+	private final long[] latencyHistogram;
+
+	ExtractionMetrics(long bytesIn, long bytesOut, int entryCount, int filesWritten, long wallTimeNanos,
+			long[] phaseNanos, long[] latencyHistogram) {
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.entryCount = entryCount;
+		this.filesWritten = filesWritten;
+		this.wallTimeNanos = wallTimeNanos;
+		this.phaseNanos = phaseNanos;
+		this.latencyHistogram = latencyHistogram;
+	}
+
+	/**
+	 * @return number of buckets of the {@link #getLatencyHistogram() latency histogram}
+	 */
+	public static int getBucketCount() {
+		return BUCKET_BOUNDS_MICROS.length + 1;
+	}
+
+	/**
+	 * @return the exclusive upper bound of the given histogram bucket in microseconds, {@link Long#MAX_VALUE} for the
+	 *         last one
+	 */
+	public static long getBucketUpperBoundMicros(int bucket) {
+		return bucket < BUCKET_BOUNDS_MICROS.length ? BUCKET_BOUNDS_MICROS[bucket] : Long.MAX_VALUE;
+	}
+
+	static int getBucket(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		int bucket = 0;
+		while (bucket < BUCKET_BOUNDS_MICROS.length && micros >= BUCKET_BOUNDS_MICROS[bucket]) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return compressed bytes of the files written
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return uncompressed bytes of the files written
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return number of entries processed, including directories and unchanged files
+	 */
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	public int getFilesWritten() {
+		return filesWritten;
+	}
+
+	public long getWallTimeNanos() {
+		return wallTimeNanos;
+	}
+
+	public long getPhaseNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	/**
+	 * @return number of files written per latency bucket, see {@link #getBucketUpperBoundMicros(int)}
+	 */
+	public long[] getLatencyHistogram() {
+		return latencyHistogram.clone();
+	}
+
+	/**
+	 * @return a copy of these metrics with the given time added to a phase
+	 */
+	public ExtractionMetrics withPhase(Phase phase, long nanos) {
+		long[] phases = phaseNanos.clone();
+		phases[phase.ordinal()] += nanos;
+		return new ExtractionMetrics(bytesIn, bytesOut, entryCount, filesWritten, wallTimeNanos, phases,
+				latencyHistogram);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		text.append("bytesIn=").append(bytesIn).append(", bytesOut=").append(bytesOut).append(", entryCount=")
+				.append(entryCount).append(", filesWritten=").append(filesWritten).append(", wallTimeMs=")
+				.append(TimeUnit.NANOSECONDS.toMillis(wallTimeNanos));
+		for (Phase phase : Phase.values()) {
+			text.append(", ").append(phase).append('=')
+					.append(TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()])).append("ms");
+		}
+		return text.append(", latencyHistogram=").append(Arrays.toString(latencyHistogram)).toString();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Body of an http(s) response, read while it is transferred. Closing the stream releases the connection.
+ */
+public class HttpArchiveStream extends FilterInputStream {
+
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int BUFFER = 8192;
+
+	private final HttpURLConnection connection;
+
+	private HttpArchiveStream(HttpURLConnection connection) throws IOException {
+		super(new BufferedInputStream(connection.getInputStream(), BUFFER));
+		this.connection = connection;
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the connection fails or the server does not answer with 200 OK
+	 */
+	public static HttpArchiveStream open(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		boolean opened = false;
+		try {
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+
+			int responseCode = connection.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Unexpected response " + responseCode + " for " + url);
+			}
+			HttpArchiveStream stream = new HttpArchiveStream(connection);
+			opened = true;
+			return stream;
+		} finally {
+			if (!opened) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * @return the length announced by the server or -1 if unknown
+	 */
+	public long getContentLength() {
+		String length = connection.getHeaderField("Content-Length");
+		try {
+			return length != null ? Long.parseLong(length) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the content type announced by the server or <code>null</code>
+	 */
+	public String getContentType() {
+		return connection.getContentType();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
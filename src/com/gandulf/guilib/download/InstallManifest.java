@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes the files installed into a directory by the last extraction: path, size and CRC of every file entry.
+ * Comparing the entries of a new archive against it tells which files are unchanged and need not be written again.
+ * <p>
+ * Every package installed into a directory has a manifest of its own, so an update of one package never forgets or
+ * deletes the files of another. The manifest is always replaced as a whole by writing a temporary file and renaming it.
+ */
+final class InstallManifest {
+
+	/**
+	 * Name of the manifest shared by all packages of a directory in older versions, and prefix of the manifests of the
+	 * single packages.
+	 */
+	static final String FILE_NAME = ".install-manifest";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Map<String, String> installed = new HashMap<>();
+
+	/**
+	 * @param packageKey
+	 *            identifies the package, i.e. the url it is downloaded from
+	 * @return the manifest file of the package within the target directory
+	 */
+	static File getFile(File dir, String packageKey) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return new File(dir, FILE_NAME + "-" + ContentStore.toHex(digest.digest(packageKey.getBytes(UTF_8))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the manifest files of all packages installed into the directory
+	 */
+	static List<File> listFiles(File dir) {
+		List<File> manifests = new ArrayList<>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(FILE_NAME) && !name.endsWith(TEMP_SUFFIX)) {
+					manifests.add(new File(dir, name));
+				}
+			}
+		}
+		return manifests;
+	}
+
+	static InstallManifest load(File file) throws IOException {
+		InstallManifest manifest = new InstallManifest();
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		} catch (FileNotFoundException e) {
+			return manifest;
+		}
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				int nameStart = line.indexOf('\t', line.indexOf('\t') + 1);
+				if (nameStart > 0) {
+					manifest.installed.put(line.substring(nameStart + 1), line.substring(0, nameStart));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return manifest;
+	}
+
+	boolean isEmpty() {
+		return installed.isEmpty();
+	}
+
+	Collection<String> getNames() {
+		return installed.keySet();
+	}
+
+	/**
+	 * @return <code>true</code> if the same content is installed already and its file is still present
+	 */
+	boolean isInstalled(ArchiveEntry entry, File target) {
+		return format(entry).equals(installed.get(entry.getName())) && target.length() == entry.getSize();
+	}
+
+	void put(ArchiveEntry entry) {
+		installed.put(entry.getName(), format(entry));
+	}
+
+	void remove(String name) {
+		installed.remove(name);
+	}
+
+	void save(File file) throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, String> entry : installed.entrySet()) {
+			content.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+		}
+
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(content.toString().getBytes(UTF_8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	private static String format(ArchiveEntry entry) {
+		return Long.toHexString(entry.getCrc()) + '\t' + entry.getSize();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * How the archive of a download is installed: staged or in place, through a content store, with thumbnails. It is
+ * recorded with the download when it is queued, so a job started again in a new process, where the settings of
+ * {@link UnzipIntentService} are back to their defaults, still installs the package the same way.
+ */
+public final class InstallMode implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of fields the mode takes in the records of the queue and the journal.
+	 */
+	static final int FIELD_COUNT = 5;
+
+	private static final char SEPARATOR = '\t';
+
+	private final boolean staged;
+	private final boolean preallocate;
+	private final String contentStorePath;
+	private final String thumbnailPath;
+	private final int thumbnailSize;
+
+	/**
+	 * @param contentStoreDir
+	 *            directory of the {@link ContentStore}, <code>null</code> for none
+	 * @param thumbnailDir
+	 *            cache directory of the {@link ThumbnailGenerator}, <code>null</code> for none
+	 * @param thumbnailSize
+	 *            maximum width and height of the thumbnails
+	 */
+	public InstallMode(boolean staged, boolean preallocate, File contentStoreDir, File thumbnailDir,
+			int thumbnailSize) {
+		this.staged = staged;
+		this.preallocate = preallocate;
+		this.contentStorePath = contentStoreDir != null ? checkPath(contentStoreDir.getAbsolutePath()) : null;
+		this.thumbnailPath = thumbnailDir != null ? checkPath(thumbnailDir.getAbsolutePath()) : null;
+		this.thumbnailSize = thumbnailSize;
+	}
+
+	public boolean isStaged() {
+		return staged;
+	}
+
+	public boolean isPreallocate() {
+		return preallocate;
+	}
+
+	public File getContentStoreDir() {
+		return contentStorePath != null ? new File(contentStorePath) : null;
+	}
+
+	public File getThumbnailDir() {
+		return thumbnailPath != null ? new File(thumbnailPath) : null;
+	}
+
+	public int getThumbnailSize() {
+		return thumbnailSize;
+	}
+
+	/**
+	 * @return the fields of the given mode separated by tabs, empty ones for <code>null</code>
+	 */
+	static String format(InstallMode mode) {
+		if (mode == null) {
+			return repeat(SEPARATOR, FIELD_COUNT - 1);
+		}
+		return (mode.staged ? "1" : "0") + SEPARATOR + (mode.preallocate ? "1" : "0") + SEPARATOR
+				+ (mode.contentStorePath != null ? mode.contentStorePath : "") + SEPARATOR
+				+ (mode.thumbnailPath != null ? mode.thumbnailPath : "") + SEPARATOR + mode.thumbnailSize;
+	}
+
+	/**
+	 * @return the mode in the {@link #FIELD_COUNT} fields starting at the given one, <code>null</code> if none was
+	 *         recorded
+	 */
+	static InstallMode parse(String[] fields, int offset) {
+		if (fields[offset].isEmpty()) {
+			return null;
+		}
+		String contentStorePath = fields[offset + 2];
+		String thumbnailPath = fields[offset + 3];
+		return new InstallMode(fields[offset].equals("1"), fields[offset + 1].equals("1"),
+				contentStorePath.isEmpty() ? null : new File(contentStorePath), thumbnailPath.isEmpty() ? null
+						: new File(thumbnailPath), Integer.parseInt(fields[offset + 4]));
+	}
+
+	private static String checkPath(String path) {
+		if (path.indexOf(SEPARATOR) >= 0 || path.indexOf('\n') >= 0) {
+			throw new IllegalArgumentException("Invalid path " + path);
+		}
+		return path;
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder result = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			result.append(c);
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "InstallMode [staged=" + staged + ", preallocate=" + preallocate + ", contentStore=" + contentStorePath
+				+ ", thumbnails=" + thumbnailPath + "]";
+	}
+}
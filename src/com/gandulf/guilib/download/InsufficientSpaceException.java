@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown before an extraction writes anything if the files it is about to write do not fit on the storage.
+ */
+public class InsufficientSpaceException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long required;
+
+	private final long available;
+
+	public InsufficientSpaceException(File dir, long required, long available) {
+		super("Not enough space in " + dir + ": " + required + " bytes required, " + available + " bytes available");
+		this.required = required;
+		this.available = available;
+	}
+
+	/**
+	 * @return bytes the extraction would write, including the reserve
+	 */
+	public long getRequired() {
+		return required;
+	}
+
+	/**
+	 * @return bytes usable on the storage when the extraction started
+	 */
+	public long getAvailable() {
+		return available;
+	}
+}
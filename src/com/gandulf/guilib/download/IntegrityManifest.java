@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Expected SHA-256 digests of a package, supplied with its download and checked while the archive is extracted. The
+ * text form is the output of <code>sha256sum</code>: one line per file with the hex digest, two spaces and the entry
+ * name. The digest of the archive itself is listed under the name {@value #ARCHIVE_NAME}, as printed by
+ * <code>sha256sum - &lt; package.zip</code>.
+ */
+public class IntegrityManifest {
+
+	/**
+	 * Name of the line holding the digest of the whole archive.
+	 */
+	public static final String ARCHIVE_NAME = "-";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int DIGEST_LENGTH = 64;
+
+	private String archiveDigest;
+
+	private final Map<String, String> entryDigests = new HashMap<>();
+
+	/**
+	 * Parses the output of <code>sha256sum</code>, lines of other checksums are rejected.
+	 */
+	public static IntegrityManifest parse(String text) throws IOException {
+		IntegrityManifest manifest = new IntegrityManifest();
+		manifest.read(new BufferedReader(new StringReader(text)));
+		return manifest;
+	}
+
+	/**
+	 * @return the digests saved in the given file, none if it does not exist
+	 */
+	public static IntegrityManifest load(File file) throws IOException {
+		IntegrityManifest manifest = new IntegrityManifest();
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		} catch (FileNotFoundException e) {
+			return manifest;
+		}
+		try {
+			manifest.read(reader);
+		} finally {
+			reader.close();
+		}
+		return manifest;
+	}
+
+	private void read(BufferedReader reader) throws IOException {
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			// "<digest>  <name>" in text mode, "<digest> *<name>" in binary mode
+			if (line.length() < DIGEST_LENGTH + 3 || line.charAt(DIGEST_LENGTH) != ' '
+					|| (line.charAt(DIGEST_LENGTH + 1) != ' ' && line.charAt(DIGEST_LENGTH + 1) != '*')) {
+				throw new IOException("Invalid digest line " + line);
+			}
+			String digest = line.substring(0, DIGEST_LENGTH);
+			String name = line.substring(DIGEST_LENGTH + 2);
+			try {
+				if (name.equals(ARCHIVE_NAME)) {
+					setArchiveDigest(digest);
+				} else {
+					putEntryDigest(name, digest);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid digest line " + line);
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return archiveDigest == null && entryDigests.isEmpty();
+	}
+
+	/**
+	 * @return hex digest of the whole archive, <code>null</code> if it is not checked
+	 */
+	public String getArchiveDigest() {
+		return archiveDigest;
+	}
+
+	public void setArchiveDigest(String digest) {
+		archiveDigest = digest != null ? normalize(digest) : null;
+	}
+
+	/**
+	 * @return hex digest of the file entry, <code>null</code> if it is not checked
+	 */
+	public String getEntryDigest(String name) {
+		return entryDigests.get(name);
+	}
+
+	public void putEntryDigest(String name, String digest) {
+		entryDigests.put(name, normalize(digest));
+	}
+
+	/**
+	 * @return names of the file entries with a digest, each of them has to be part of the archive
+	 */
+	public Collection<String> getEntryNames() {
+		return Collections.unmodifiableSet(entryDigests.keySet());
+	}
+
+	/**
+	 * Replaces the given file as a whole by writing a temporary file and renaming it.
+	 */
+	public void save(File file) throws IOException {
+		StringBuilder content = new StringBuilder();
+		if (archiveDigest != null) {
+			content.append(archiveDigest).append("  ").append(ARCHIVE_NAME).append('\n');
+		}
+		for (Map.Entry<String, String> entry : entryDigests.entrySet()) {
+			content.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(content.toString().getBytes(UTF_8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	private static String normalize(String digest) {
+		String hex = digest.toLowerCase(Locale.US);
+		if (hex.length() != DIGEST_LENGTH) {
+			throw new IllegalArgumentException("Not a SHA-256 digest: " + digest);
+		}
+		for (int i = 0; i < hex.length(); i++) {
+			char c = hex.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				throw new IllegalArgumentException("Not a SHA-256 digest: " + digest);
+			}
+		}
+		return hex;
+	}
+}
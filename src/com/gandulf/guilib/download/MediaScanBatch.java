@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects the media files written by an extraction and hands them to the media scanner afterwards. Files found
+ * unchanged are not reported by the {@link Unpacker} and therefore not scanned again. The files are submitted in
+ * batches, the next batch once the scanner has completed the previous one.
+ */
+public class MediaScanBatch extends UnpackObserver.Adapter implements MediaScannerConnection.OnScanCompletedListener {
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private final Context context;
+	private final String mimeFilter;
+	private final int batchSize;
+
+	private final List<String> paths = new ArrayList<>();
+	private final List<String> mimeTypes = new ArrayList<>();
+
+	private int next;
+	private int pending;
+
+	private Runnable onComplete;
+
+	public MediaScanBatch(Context context, String mimeFilter) {
+		this(context, mimeFilter, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param mimeFilter
+	 *            mime type of the files to scan, i.e. "image/jpeg", "image/*" or "*&#47;*" for any media
+	 * @param batchSize
+	 *            maximum number of files submitted to the media scanner at once
+	 */
+	public MediaScanBatch(Context context, String mimeFilter, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+		this.context = context.getApplicationContext();
+		this.mimeFilter = mimeFilter;
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void onFileWritten(ArchiveEntry entry, File file) {
+		String mimeType = getMimeType(file.getName());
+		if (mimeType != null && matches(mimeType)) {
+			synchronized (this) {
+				paths.add(file.getAbsolutePath());
+				mimeTypes.add(mimeType);
+			}
+		}
+	}
+
+	/**
+	 * @return number of files collected for scanning
+	 */
+	public synchronized int size() {
+		return paths.size();
+	}
+
+	/**
+	 * Updates the collected files after the directory they were written to has been renamed.
+	 */
+	synchronized void relocate(File from, File to) {
+		String prefix = from.getAbsolutePath() + File.separator;
+		String replacement = to.getAbsolutePath() + File.separator;
+		for (int i = next; i < paths.size(); i++) {
+			String path = paths.get(i);
+			if (path.startsWith(prefix)) {
+				paths.set(i, replacement + path.substring(prefix.length()));
+			}
+		}
+	}
+
+	/**
+	 * Starts scanning the collected files.
+	 */
+	public void scan() {
+		scan(null);
+	}
+
+	/**
+	 * Starts scanning the collected files without waiting for the scanner.
+	 *
+	 * @param onComplete
+	 *            run once all files have been scanned, on a thread of the media scanner or right away if there is
+	 *            nothing to scan
+	 */
+	public void scan(Runnable onComplete) {
+		synchronized (this) {
+			this.onComplete = onComplete;
+		}
+		submitNext();
+	}
+
+	/**
+	 * Waits until the media scanner has completed all files, after {@link #scan()} has been called.
+	 *
+	 * @return <code>false</code> if the files have not all been scanned within the given time
+	 */
+	public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+		long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+		while (pending > 0 || next < paths.size()) {
+			long remaining = deadline - SystemClock.elapsedRealtime();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	@Override
+	public void onScanCompleted(String path, Uri uri) {
+		boolean batchDone;
+		synchronized (this) {
+			batchDone = --pending == 0;
+			if (batchDone) {
+				notifyAll();
+			}
+		}
+		if (batchDone) {
+			submitNext();
+		}
+	}
+
+	private void submitNext() {
+		String[] batchPaths = null;
+		String[] batchMimeTypes = null;
+		Runnable done = null;
+		synchronized (this) {
+			if (pending > 0) {
+				return;
+			}
+			if (next >= paths.size()) {
+				done = onComplete;
+				onComplete = null;
+			} else {
+				int end = Math.min(next + batchSize, paths.size());
+				batchPaths = paths.subList(next, end).toArray(new String[end - next]);
+				batchMimeTypes = mimeTypes.subList(next, end).toArray(new String[end - next]);
+				pending = end - next;
+				next = end;
+			}
+		}
+		if (batchPaths != null) {
+			MediaScannerConnection.scanFile(context, batchPaths, batchMimeTypes, this);
+		} else if (done != null) {
+			done.run();
+		}
+	}
+
+	private boolean matches(String mimeType) {
+		if (mimeFilter == null || mimeFilter.equals("*/*")) {
+			return true;
+		} else if (mimeFilter.endsWith("/*")) {
+			return mimeType.startsWith(mimeFilter.substring(0, mimeFilter.length() - 1));
+		} else {
+			return mimeType.equals(mimeFilter);
+		}
+	}
+
+	private static String getMimeType(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		if (dot < 0) {
+			return null;
+		}
+		return MimeTypeMap.getSingleton().getMimeTypeFromExtension(fileName.substring(dot + 1).toLowerCase(Locale.US));
+	}
+}
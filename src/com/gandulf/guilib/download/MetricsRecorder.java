@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the {@link ExtractionMetrics} of a running extraction from all worker threads.
+ */
+final class MetricsRecorder {
+
+	private final long start = System.nanoTime();
+	private volatile long wallTime = -1;
+
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicInteger entryCount = new AtomicInteger();
+	private final AtomicInteger filesWritten = new AtomicInteger();
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(ExtractionMetrics.Phase.values().length);
+	private final AtomicLongArray latencyHistogram = new AtomicLongArray(ExtractionMetrics.getBucketCount());
+
+	void addPhase(ExtractionMetrics.Phase phase, long nanos) {
+		phaseNanos.addAndGet(phase.ordinal(), nanos);
+	}
+
+	void countEntry() {
+		entryCount.incrementAndGet();
+	}
+
+	/**
+	 * @param nanos
+	 *            time from starting the entry until its file was closed
+	 */
+	void recordFile(long compressedSize, long size, long nanos) {
+		if (compressedSize > 0) {
+			bytesIn.addAndGet(compressedSize);
+		}
+		if (size > 0) {
+			bytesOut.addAndGet(size);
+		}
+		filesWritten.incrementAndGet();
+		latencyHistogram.incrementAndGet(ExtractionMetrics.getBucket(nanos));
+	}
+
+	void finish() {
+		wallTime = System.nanoTime() - start;
+	}
+
+	ExtractionMetrics snapshot() {
+		long wallTime = this.wallTime;
+		long[] phases = new long[phaseNanos.length()];
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = phaseNanos.get(i);
+		}
+		long[] histogram = new long[latencyHistogram.length()];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = latencyHistogram.get(i);
+		}
+		return new ExtractionMetrics(bytesIn.get(), bytesOut.get(), entryCount.get(), filesWritten.get(),
+				wallTime >= 0 ? wallTime : System.nanoTime() - start, phases, histogram);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.format.Formatter;
+
+import com.gandulf.guilib.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the progress of all running extractions in one notification. Progress reports of the jobs are coalesced, the
+ * notification is posted at most once per {@link #setUpdateInterval(long) update interval}, while the start and the
+ * end of a job are always shown.
+ */
+public class ProgressNotifier {
+
+	public static final int UNZIP_ID = UnzipIntentService.UNZIP_ID;
+
+	/**
+	 * Id of the notification about a failed extraction, kept apart so it is not replaced by the progress of other jobs.
+	 */
+	public static final int UNZIP_ERROR_ID = UNZIP_ID + 1;
+
+	private static final int PROGRESS_MAX = 1000;
+
+	private static ProgressNotifier instance;
+
+	private final Context context;
+	private final NotificationManagerCompat notificationManager;
+	private final NotificationCompat.Builder notificationBuilder;
+
+	private final List<Job> jobs = new ArrayList<>();
+
+	private long updateInterval = 250;
+	private long lastUpdate;
+
+	public class Job extends UnpackObserver.Adapter {
+
+		private final String title;
+		private volatile long bytesDone;
+		private volatile long bytesTotal = ArchiveEntry.UNKNOWN;
+
+		Job(String title) {
+			this.title = title;
+		}
+
+		@Override
+		public void onProgress(long bytesDone, long bytesTotal) {
+			this.bytesDone = bytesDone;
+			this.bytesTotal = bytesTotal;
+			update(false);
+		}
+
+		/**
+		 * Removes the job from the notification.
+		 *
+		 * @param result
+		 *            one of the {@link UnzipIntentService} result codes
+		 */
+		public void finish(int result) {
+			ProgressNotifier.this.finish(this, result);
+		}
+	}
+
+	public static synchronized ProgressNotifier getInstance(Context context) {
+		if (instance == null) {
+			instance = new ProgressNotifier(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	ProgressNotifier(Context context) {
+		this.context = context;
+		this.notificationManager = NotificationManagerCompat.from(context);
+		this.notificationBuilder = createBuilder();
+	}
+
+	public long getUpdateInterval() {
+		return updateInterval;
+	}
+
+	/**
+	 * @param updateInterval
+	 *            minimum number of milliseconds between two progress notifications, defaults to 250 (4 per second)
+	 */
+	public void setUpdateInterval(long updateInterval) {
+		this.updateInterval = updateInterval;
+	}
+
+	public Job start(String title) {
+		Job job = new Job(title);
+		synchronized (this) {
+			jobs.add(job);
+		}
+		update(true);
+		return job;
+	}
+
+	private void update(boolean force) {
+		synchronized (this) {
+			long now = SystemClock.elapsedRealtime();
+			if (jobs.isEmpty() || (!force && now - lastUpdate < updateInterval)) {
+				return;
+			}
+			lastUpdate = now;
+
+			long done = 0;
+			long total = 0;
+			boolean indeterminate = false;
+			for (Job job : jobs) {
+				done += job.bytesDone;
+				if (job.bytesTotal == ArchiveEntry.UNKNOWN) {
+					indeterminate = true;
+				} else {
+					total += job.bytesTotal;
+				}
+			}
+
+			if (jobs.size() == 1) {
+				notificationBuilder.setContentTitle(jobs.get(0).title);
+			} else {
+				notificationBuilder.setContentTitle("Unpacking " + jobs.size() + " packages");
+			}
+			if (indeterminate || total <= 0) {
+				notificationBuilder.setContentText(Formatter.formatShortFileSize(context, done));
+				notificationBuilder.setProgress(0, 0, true);
+			} else {
+				notificationBuilder.setContentText(Formatter.formatShortFileSize(context, done) + " / "
+						+ Formatter.formatShortFileSize(context, total));
+				notificationBuilder.setProgress(PROGRESS_MAX, (int) (PROGRESS_MAX * Math.min(done, total) / total),
+						false);
+			}
+			notificationManager.notify(UNZIP_ID, notificationBuilder.build());
+		}
+	}
+
+	private void finish(Job job, int result) {
+		boolean last;
+		synchronized (this) {
+			jobs.remove(job);
+			last = jobs.isEmpty();
+		}
+
+		if (result == UnzipIntentService.RESULT_ERROR) {
+			notifyFailed();
+		}
+
+		if (last) {
+			notificationManager.cancel(UNZIP_ID);
+		} else {
+			update(true);
+		}
+	}
+
+	/**
+	 * Shows that an extraction has failed.
+	 */
+	public void notifyFailed() {
+		NotificationCompat.Builder builder = createBuilder();
+		builder.setContentTitle("Unpacking failed");
+		builder.setContentText(context.getString(R.string.download_error));
+		builder.setSmallIcon(android.R.drawable.stat_sys_warning);
+		builder.setAutoCancel(true);
+		notificationManager.notify(UNZIP_ERROR_ID, builder.build());
+	}
+
+	private NotificationCompat.Builder createBuilder() {
+		PendingIntent contentIntent = PendingIntent.getActivity(context, 0, new Intent(), 0);
+
+		NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
+		builder.setSmallIcon(android.R.drawable.stat_sys_download);
+		builder.setContentTitle("Unpacking package");
+		builder.setWhen(System.currentTimeMillis());
+		builder.setOnlyAlertOnce(true);
+		builder.setContentIntent(contentIntent);
+		return builder;
+	}
+}
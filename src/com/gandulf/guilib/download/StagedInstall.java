@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Installs new versions of a package directory next to the live one and makes them live at once. Each version is a
+ * directory below <code>versions</code>, a small pointer file names the live one and is replaced by a rename. Readers
+ * ask {@link #getCurrentDir()} for the live directory without any locking and never see a half updated tree.
+ * <p>
+ * A staging directory starts with the installed files of all packages of the live version, hard links if a linker is
+ * available and copies otherwise, so the swap keeps every package and an update only writes the changed files. Versions replaced by a swap are deleted in the background, the previous
+ * version is kept until the next swap for readers that are still busy with it.
+ */
+public class StagedInstall {
+
+	private static final String VERSIONS_NAME = "versions";
+
+	private static final String CURRENT_NAME = "current";
+
+	private static final String STAGING_NAME = ".staging";
+
+	private static final String OWNER_NAME = ".staging-owner";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final Map<File, StagedInstall> instances = new HashMap<>();
+
+	private static final ExecutorService cleaner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "StagedInstall");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final File baseDir;
+
+	private final File versionsDir;
+
+	private volatile File currentDir;
+
+	private volatile ContentStore.Linker linker;
+
+	private volatile ContentStore contentStore;
+
+	/**
+	 * Only one version of the directory is staged at a time.
+	 */
+	private final Semaphore staging = new Semaphore(1);
+
+	/**
+	 * @return the instance managing the given directory, shared so all readers see the swaps at once
+	 */
+	public static synchronized StagedInstall getInstance(File baseDir) {
+		File key = baseDir.getAbsoluteFile();
+		StagedInstall install = instances.get(key);
+		if (install == null) {
+			install = new StagedInstall(key);
+			instances.put(key, install);
+		}
+		return install;
+	}
+
+	StagedInstall(File baseDir) {
+		this.baseDir = baseDir;
+		this.versionsDir = new File(baseDir, VERSIONS_NAME);
+	}
+
+	public File getBaseDir() {
+		return baseDir;
+	}
+
+	public ContentStore.Linker getLinker() {
+		return linker;
+	}
+
+	/**
+	 * @param linker
+	 *            creates hard links to the files of the live version when staging, <code>null</code> to copy them
+	 */
+	public void setLinker(ContentStore.Linker linker) {
+		this.linker = linker;
+	}
+
+	public ContentStore getContentStore() {
+		return contentStore;
+	}
+
+	/**
+	 * @param contentStore
+	 *            store the packages are extracted with, told about the path indexes of versions copied and deleted so
+	 *            it can collect the objects no longer used, <code>null</code> for none
+	 */
+	public void setContentStore(ContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	/**
+	 * @return the directory of the live version, the base directory itself as long as nothing has been installed
+	 *         staged
+	 */
+	public File getCurrentDir() {
+		File dir = currentDir;
+		if (dir == null) {
+			String name = readPointer();
+			dir = name != null ? new File(versionsDir, name) : baseDir;
+			currentDir = dir;
+		}
+		return dir;
+	}
+
+	/**
+	 * Prepares the staging directory, waiting while another version is staged. An abandoned staging directory of the
+	 * same owner is reused, so an interrupted extraction can resume from its checkpoint.
+	 *
+	 * @param owner
+	 *            identifies the extraction, i.e. by its download
+	 * @return the directory to extract into, to be passed to {@link #commit(File)} or {@link #abort(File)}
+	 */
+	public File stage(String owner) throws IOException, InterruptedException {
+		staging.acquire();
+		try {
+			File dir = new File(versionsDir, STAGING_NAME);
+			File ownerFile = new File(versionsDir, OWNER_NAME);
+			if (dir.isDirectory()) {
+				if (owner.equals(readFirstLine(ownerFile))) {
+					return dir;
+				}
+				release(dir);
+				delete(dir);
+			}
+			if (!dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			write(ownerFile, owner);
+
+			populate(linker, getCurrentDir(), dir);
+			return dir;
+		} catch (IOException | RuntimeException e) {
+			staging.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Makes the staged version live and deletes older versions in the background.
+	 */
+	public void commit(File stagingDir) throws IOException {
+		try {
+			String name = nextVersionName();
+			File dir = new File(versionsDir, name);
+			if (!stagingDir.renameTo(dir)) {
+				throw new IOException("Cannot rename " + stagingDir + " to " + dir);
+			}
+			File previous = getCurrentDir();
+			write(new File(baseDir, CURRENT_NAME), name);
+			currentDir = dir;
+			new File(versionsDir, OWNER_NAME).delete();
+			cleanup(previous, dir);
+		} finally {
+			staging.release();
+		}
+	}
+
+	/**
+	 * Drops the staged version, the live one stays untouched.
+	 */
+	public void abort(File stagingDir) {
+		try {
+			try {
+				release(stagingDir);
+			} catch (IOException e) {
+				// the objects of the path index are kept
+			}
+			delete(stagingDir);
+			new File(versionsDir, OWNER_NAME).delete();
+		} finally {
+			staging.release();
+		}
+	}
+
+	/**
+	 * Takes the installed files of the live version over into the staging directory. Only files listed in the install
+	 * manifests of the packages are taken over, the unpacker replaces these instead of writing into them.
+	 *
+	 * @param linker
+	 *            links the files, <code>null</code> to copy them
+	 */
+	private void populate(ContentStore.Linker linker, File source, File target) throws IOException {
+		DirectoryCache directories = new DirectoryCache();
+		for (File manifestFile : InstallManifest.listFiles(source)) {
+			for (String name : InstallManifest.load(manifestFile).getNames()) {
+				File file = new File(source, name);
+				if (file.isFile()) {
+					File link = new File(target, name);
+					directories.ensureWritable(link.getParentFile());
+					link(linker, file, link);
+				}
+			}
+			link(linker, manifestFile, new File(target, manifestFile.getName()));
+		}
+		File index = new File(source, ContentStore.INDEX_NAME);
+		if (index.isFile()) {
+			link(linker, index, new File(target, ContentStore.INDEX_NAME));
+			ContentStore store = contentStore;
+			if (store != null) {
+				store.retain(target);
+			}
+		}
+	}
+
+	private static void link(ContentStore.Linker linker, File existing, File link) throws IOException {
+		if (linker != null) {
+			linker.link(existing, link);
+		} else {
+			copy(existing, link);
+		}
+	}
+
+	private static void copy(File source, File target) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(target);
+			try {
+				FileChannel channel = in.getChannel();
+				long size = channel.size();
+				long position = 0;
+				while (position < size) {
+					long count = channel.transferTo(position, size - position, out.getChannel());
+					if (count <= 0) {
+						throw new IOException("Unexpected end of " + source);
+					}
+					position += count;
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private String nextVersionName() {
+		long version = 0;
+		String[] names = versionsDir.list();
+		if (names != null) {
+			for (String name : names) {
+				try {
+					version = Math.max(version, Long.parseLong(name));
+				} catch (NumberFormatException e) {
+					// the staging directory
+				}
+			}
+		}
+		return Long.toString(version + 1);
+	}
+
+	/**
+	 * Deletes all versions older than the given previous one. The files of an installation made before staging was
+	 * used count as a version of their own, they are kept until the swap after the first staged one.
+	 */
+	private void cleanup(final File previous, final File current) {
+		cleaner.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (previous.equals(baseDir)) {
+					return;
+				}
+				try {
+					deleteInstalled(baseDir);
+					File[] versions = versionsDir.listFiles();
+					if (versions != null) {
+						for (File version : versions) {
+							if (!version.equals(current) && !version.equals(previous)
+									&& !version.getName().startsWith(".")) {
+								release(version);
+								delete(version);
+							}
+						}
+					}
+					ContentStore store = contentStore;
+					if (store != null) {
+						store.collect();
+					}
+				} catch (IOException e) {
+					// left for the next swap
+				}
+			}
+		});
+	}
+
+	private void deleteInstalled(File dir) throws IOException {
+		List<File> manifestFiles = InstallManifest.listFiles(dir);
+		if (manifestFiles.isEmpty()) {
+			// removed by an earlier swap already
+			return;
+		}
+		for (File manifestFile : manifestFiles) {
+			for (String name : InstallManifest.load(manifestFile).getNames()) {
+				new File(dir, name).delete();
+			}
+		}
+		release(dir);
+		new File(dir, ContentStore.INDEX_NAME).delete();
+		for (File manifestFile : manifestFiles) {
+			manifestFile.delete();
+		}
+	}
+
+	/**
+	 * Tells the content store that the path index of a version is about to be deleted.
+	 */
+	private void release(File dir) throws IOException {
+		ContentStore store = contentStore;
+		if (store != null && new File(dir, ContentStore.INDEX_NAME).isFile()) {
+			store.release(dir);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private String readPointer() {
+		try {
+			return readFirstLine(new File(baseDir, CURRENT_NAME));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String readFirstLine(File file) throws IOException {
+		BufferedReader reader;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Replaces a file as a whole by writing a temporary file and renaming it.
+	 */
+	private static void write(File file, String content) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write((content + '\n').getBytes(UTF_8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads tar archives, optionally gzip compressed as a whole. A tar.gz compresses all files in one stream, which packs
+ * many tiny files much better than zip. Regular files and directories are extracted, including the long names of GNU
+ * and POSIX tar; links and special files are skipped. The CRC of each file is computed while it is read.
+ */
+final class TarExtractor implements ArchiveExtractor {
+
+	private static final int BLOCK = 512;
+
+	private static final int GZIP_BUFFER = 65536;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int NAME_OFFSET = 0;
+	private static final int NAME_LENGTH = 100;
+	private static final int SIZE_OFFSET = 124;
+	private static final int SIZE_LENGTH = 12;
+	private static final int CHECKSUM_OFFSET = 148;
+	private static final int CHECKSUM_LENGTH = 8;
+	private static final int TYPE_OFFSET = 156;
+	private static final int MAGIC_OFFSET = 257;
+	private static final int PREFIX_OFFSET = 345;
+	private static final int PREFIX_LENGTH = 155;
+
+	private final boolean gzip;
+
+	TarExtractor(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	@Override
+	public String getName() {
+		return gzip ? "tar.gz" : "tar";
+	}
+
+	@Override
+	public boolean matchesMagic(byte[] header, int length) {
+		if (gzip) {
+			return length >= 2 && (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B;
+		}
+		// "ustar" of POSIX and GNU tar, old archives without it are only recognized by their content type
+		return length >= MAGIC_OFFSET + 5 && header[MAGIC_OFFSET] == 'u' && header[MAGIC_OFFSET + 1] == 's'
+				&& header[MAGIC_OFFSET + 2] == 't' && header[MAGIC_OFFSET + 3] == 'a'
+				&& header[MAGIC_OFFSET + 4] == 'r';
+	}
+
+	@Override
+	public boolean matchesContentType(String contentType) {
+		if (gzip) {
+			return contentType.equals("application/gzip") || contentType.equals("application/x-gzip")
+					|| contentType.equals("application/x-gtar") || contentType.equals("application/x-tgz")
+					|| contentType.equals("application/x-compressed-tar");
+		}
+		return contentType.equals("application/x-tar") || contentType.equals("application/tar");
+	}
+
+	@Override
+	public EntryReader open(InputStream in) throws IOException {
+		return new Reader(gzip ? new GZIPInputStream(in, GZIP_BUFFER) : in);
+	}
+
+	private static class Reader implements EntryReader {
+
+		private final InputStream in;
+
+		private final byte[] header = new byte[BLOCK];
+
+		private final CRC32 crc = new CRC32();
+
+		private final InputStream content = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int count = in.read(b, off, (int) Math.min(len, remaining));
+				if (count == -1) {
+					throw new EOFException("Unexpected end of archive in " + current.getName());
+				}
+				crc.update(b, off, count);
+				remaining -= count;
+				return count;
+			}
+		};
+
+		private ArchiveEntry current;
+
+		/**
+		 * Content bytes of the current entry not read yet.
+		 */
+		private long remaining;
+
+		/**
+		 * Bytes filling up the last block of the current entry.
+		 */
+		private long padding;
+
+		Reader(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public ArchiveEntry nextEntry() throws IOException {
+			skip(remaining + padding);
+			remaining = 0;
+			padding = 0;
+			current = null;
+
+			String longName = null;
+			long paxSize = ArchiveEntry.UNKNOWN;
+			while (readBlock()) {
+				if (isEmpty(header)) {
+					// end of archive marker
+					return null;
+				}
+				verifyChecksum();
+
+				long size = parseNumber(SIZE_OFFSET, SIZE_LENGTH);
+				char type = (char) header[TYPE_OFFSET];
+				if (type == 'L') {
+					// GNU long name of the following entry
+					longName = trimNul(new String(readData(size), UTF_8));
+					continue;
+				} else if (type == 'x') {
+					// POSIX extended header of the following entry
+					String[] pax = parsePax(readData(size));
+					if (pax[0] != null) {
+						longName = pax[0];
+					}
+					if (pax[1] != null) {
+						paxSize = parseSize(pax[1]);
+					}
+					continue;
+				}
+
+				String name = longName != null ? longName : getHeaderName();
+				if (paxSize != ArchiveEntry.UNKNOWN) {
+					size = paxSize;
+				}
+				longName = null;
+				paxSize = ArchiveEntry.UNKNOWN;
+
+				boolean directory = type == '5';
+				boolean file = type == '0' || type == '\0' || type == '7';
+				if (!directory && !file) {
+					// links, devices, fifos and global headers
+					skip(size + pad(size));
+					continue;
+				}
+
+				while (name.startsWith("./")) {
+					name = name.substring(2);
+				}
+				if (name.isEmpty() || name.equals(".")) {
+					// the root of the archive
+					skip(size + pad(size));
+					continue;
+				}
+				if (directory && !name.endsWith("/")) {
+					name += "/";
+				}
+
+				crc.reset();
+				remaining = directory ? 0 : size;
+				padding = pad(size) + (directory ? size : 0);
+				current = new ArchiveEntry(name, ZipEntry.STORED, directory ? 0 : size, size, ArchiveEntry.UNKNOWN,
+						ArchiveEntry.UNKNOWN);
+				return current;
+			}
+			// archives cut after the last entry are tolerated like by tar itself
+			return null;
+		}
+
+		@Override
+		public InputStream getContent() {
+			return content;
+		}
+
+		@Override
+		public ArchiveEntry finishEntry() throws IOException {
+			if (remaining > 0) {
+				throw new IOException("Content of " + current.getName() + " not read completely");
+			}
+			if (current.isDirectory()) {
+				return current;
+			}
+			return new ArchiveEntry(current.getName(), current.getMethod(), current.getSize(),
+					current.getCompressedSize(), crc.getValue(), ArchiveEntry.UNKNOWN);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * @return <code>false</code> at the end of the stream
+		 */
+		private boolean readBlock() throws IOException {
+			int length = 0;
+			int count;
+			while (length < BLOCK && (count = in.read(header, length, BLOCK - length)) != -1) {
+				length += count;
+			}
+			if (length > 0 && length < BLOCK) {
+				throw new EOFException("Truncated tar header");
+			}
+			return length == BLOCK;
+		}
+
+		private byte[] readData(long size) throws IOException {
+			if (size < 0 || size > Integer.MAX_VALUE - BLOCK) {
+				throw new IOException("Invalid tar header size " + size);
+			}
+			byte[] data = new byte[(int) size];
+			int length = 0;
+			while (length < data.length) {
+				int count = in.read(data, length, data.length - length);
+				if (count == -1) {
+					throw new EOFException("Unexpected end of archive");
+				}
+				length += count;
+			}
+			skip(pad(size));
+			return data;
+		}
+
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				long skipped = in.skip(count);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						throw new EOFException("Unexpected end of archive");
+					}
+					skipped = 1;
+				}
+				count -= skipped;
+			}
+		}
+
+		private void verifyChecksum() throws IOException {
+			long expected = parseNumber(CHECKSUM_OFFSET, CHECKSUM_LENGTH);
+			long sum = 0;
+			for (int i = 0; i < BLOCK; i++) {
+				boolean checksumField = i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + CHECKSUM_LENGTH;
+				sum += checksumField ? ' ' : header[i] & 0xFF;
+			}
+			if (sum != expected) {
+				throw new IOException("Invalid tar header checksum");
+			}
+		}
+
+		private String getHeaderName() {
+			String name = readString(NAME_OFFSET, NAME_LENGTH);
+			String prefix = readString(PREFIX_OFFSET, PREFIX_LENGTH);
+			boolean ustar = header[MAGIC_OFFSET] == 'u' && header[MAGIC_OFFSET + 5] == 0;
+			return ustar && !prefix.isEmpty() ? prefix + "/" + name : name;
+		}
+
+		private String readString(int offset, int length) {
+			int end = offset;
+			while (end < offset + length && header[end] != 0) {
+				end++;
+			}
+			return new String(header, offset, end - offset, UTF_8);
+		}
+
+		/**
+		 * Parses an octal number, or a big endian binary number as written by GNU tar for huge values.
+		 */
+		private long parseNumber(int offset, int length) throws IOException {
+			if ((header[offset] & 0x80) != 0) {
+				long value = header[offset] & 0x7F;
+				for (int i = offset + 1; i < offset + length; i++) {
+					value = (value << 8) | (header[i] & 0xFF);
+				}
+				return value;
+			}
+			long value = 0;
+			int i = offset;
+			while (i < offset + length && (header[i] == ' ' || header[i] == 0)) {
+				i++;
+			}
+			for (; i < offset + length && header[i] != ' ' && header[i] != 0; i++) {
+				if (header[i] < '0' || header[i] > '7') {
+					throw new IOException("Invalid number in tar header");
+				}
+				value = (value << 3) + (header[i] - '0');
+			}
+			return value;
+		}
+
+		/**
+		 * @return the path and size of a POSIX extended header, <code>null</code> where missing
+		 */
+		private static String[] parsePax(byte[] data) throws IOException {
+			String[] values = new String[2];
+			int position = 0;
+			while (position < data.length) {
+				int space = position;
+				while (space < data.length && data[space] != ' ') {
+					space++;
+				}
+				if (space == data.length) {
+					throw new IOException("Invalid extended tar header");
+				}
+				int length;
+				try {
+					length = Integer.parseInt(new String(data, position, space - position, UTF_8));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid extended tar header");
+				}
+				// the record has to hold at least its length, the space and the newline
+				if (length < space - position + 2 || length > data.length - position
+						|| data[position + length - 1] != '\n') {
+					throw new IOException("Invalid extended tar header");
+				}
+				// "<length> <key>=<value>\n"
+				String record = new String(data, space + 1, position + length - space - 2, UTF_8);
+				int equals = record.indexOf('=');
+				if (equals > 0) {
+					String key = record.substring(0, equals);
+					if (key.equals("path")) {
+						values[0] = record.substring(equals + 1);
+					} else if (key.equals("size")) {
+						values[1] = record.substring(equals + 1);
+					}
+				}
+				position += length;
+			}
+			return values;
+		}
+
+		private static long parseSize(String value) throws IOException {
+			long size;
+			try {
+				size = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid size in extended tar header");
+			}
+			if (size < 0) {
+				throw new IOException("Invalid size in extended tar header");
+			}
+			return size;
+		}
+
+		private static String trimNul(String value) {
+			int end = value.indexOf('\0');
+			return end >= 0 ? value.substring(0, end) : value;
+		}
+
+		private static long pad(long size) {
+			return (BLOCK - size % BLOCK) % BLOCK;
+		}
+
+		private static boolean isEmpty(byte[] block) {
+			for (byte b : block) {
+				if (b != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates small thumbnails of the images written by an extraction, so galleries need not decode the full size files.
+ * An image is decoded right after it has been written, while its bytes are still in the page cache. The work runs on
+ * a few low priority threads of its own and never holds up the extraction.
+ * <p>
+ * Thumbnails are kept in a cache directory by the output directory of their package and the name of their entry, so
+ * one generator serves all packages. Writing the entry again replaces its thumbnail, unchanged entries keep theirs and
+ * removed entries lose theirs. Once the cache outgrows its {@link #setMaxCacheSize(long) limit} the least recently
+ * used thumbnails are deleted.
+ */
+public class ThumbnailGenerator {
+
+	private static final String TAG = "Downloader";
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	public static final int DEFAULT_THREAD_COUNT = 2;
+
+	public static final long DEFAULT_MAX_CACHE_SIZE = 16 * 1024 * 1024;
+
+	private static final int JPEG_QUALITY = 80;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File cacheDir;
+
+	private final int maxSize;
+
+	private final ThreadPoolExecutor executor;
+
+	private volatile long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+	/**
+	 * Bytes taken by the thumbnails, -1 until the cache directory has been looked at. Guarded by {@link #cacheLock},
+	 * which is never held together with the lock of the generator.
+	 */
+	private long cacheSize = -1;
+
+	private final Object cacheLock = new Object();
+
+	/**
+	 * Jobs not finished yet, to be updated when the directory of their file is renamed.
+	 */
+	private final Set<Job> pending = new LinkedHashSet<>();
+
+	/**
+	 * Directories about to be renamed, see {@link #beginRelocate(File)}.
+	 */
+	private final Set<String> relocating = new HashSet<>();
+
+	/**
+	 * Jobs which found their file missing while its directory was being renamed, run again once it has been.
+	 */
+	private final List<Job> parked = new ArrayList<>();
+
+	private class Job implements Runnable {
+
+		final File packageDir;
+		final String name;
+		File file;
+
+		Job(File packageDir, String name, File file) {
+			this.packageDir = packageDir;
+			this.name = name;
+			this.file = file;
+		}
+
+		@Override
+		public void run() {
+			boolean done = true;
+			try {
+				File thumbnail = getThumbnailFile(packageDir, name);
+				File source = getFile();
+				if (!generate(thumbnail, source)) {
+					// the file may have been moved by a staged install in the meantime
+					File moved = getFile();
+					if (!moved.equals(source)) {
+						generate(thumbnail, moved);
+					} else if (!moved.exists()) {
+						done = !park(this, moved);
+					}
+				}
+			} catch (IOException | RuntimeException | OutOfMemoryError e) {
+				Log.w(TAG, "Cannot create thumbnail of " + name, e);
+			} finally {
+				if (done) {
+					synchronized (ThumbnailGenerator.this) {
+						pending.remove(this);
+					}
+				}
+			}
+		}
+
+		private File getFile() {
+			synchronized (ThumbnailGenerator.this) {
+				return file;
+			}
+		}
+	}
+
+	public ThumbnailGenerator(File cacheDir) {
+		this(cacheDir, DEFAULT_MAX_SIZE, DEFAULT_THREAD_COUNT);
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum width and height of the thumbnails in pixels
+	 * @param threadCount
+	 *            maximum number of images decoded at the same time
+	 */
+	public ThumbnailGenerator(File cacheDir, int maxSize, int threadCount) {
+		if (maxSize < 1 || threadCount < 1) {
+			throw new IllegalArgumentException("Invalid size " + maxSize + " or thread count " + threadCount);
+		}
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+		this.executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "ThumbnailGenerator-" + ++count);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * @param maxCacheSize
+	 *            bytes the thumbnails may take, the least recently used ones are deleted beyond
+	 */
+	public void setMaxCacheSize(long maxCacheSize) {
+		if (maxCacheSize < 0) {
+			throw new IllegalArgumentException("Invalid cache size " + maxCacheSize);
+		}
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	/**
+	 * @param packageDir
+	 *            output directory of the package being extracted, the base directory of staged installs
+	 * @return observer of one extraction, generating the thumbnails of the images it writes
+	 */
+	public UnpackObserver observe(final File packageDir) {
+		return new UnpackObserver.Adapter() {
+			@Override
+			public void onFileWritten(ArchiveEntry entry, File file) {
+				if (!isImage(entry.getName())) {
+					return;
+				}
+				Job job = new Job(packageDir, entry.getName(), file);
+				synchronized (ThumbnailGenerator.this) {
+					pending.add(job);
+				}
+				executor.execute(job);
+			}
+
+			@Override
+			public void onFileRemoved(String name, File file) {
+				if (isImage(name)) {
+					remove(packageDir, name);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return number of images waiting for or being turned into a thumbnail
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @param packageDir
+	 *            output directory the package was downloaded to
+	 * @return the file of the thumbnail of the given entry, which does not exist if none has been generated
+	 */
+	public File getThumbnailFile(File packageDir, String name) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(packageDir.getAbsolutePath().getBytes(UTF_8));
+			digest.update((byte) 0);
+			return new File(cacheDir, ContentStore.toHex(digest.digest(name.getBytes(UTF_8))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the thumbnail of the given entry, <code>null</code> if none has been generated
+	 */
+	public Bitmap loadThumbnail(File packageDir, String name) {
+		File file = getThumbnailFile(packageDir, name);
+		if (!file.isFile()) {
+			return null;
+		}
+		// the modification time orders the thumbnails for eviction
+		file.setLastModified(System.currentTimeMillis());
+		return BitmapFactory.decodeFile(file.getPath());
+	}
+
+	/**
+	 * Deletes the thumbnail of the given entry.
+	 */
+	public void remove(File packageDir, String name) {
+		File file = getThumbnailFile(packageDir, name);
+		long length = file.length();
+		if (file.delete()) {
+			synchronized (cacheLock) {
+				if (cacheSize >= 0) {
+					cacheSize = Math.max(0, cacheSize - length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Announces that the given directory is about to be renamed, pending images which find their file missing wait
+	 * for the matching {@link #relocate(File, File)} instead of being dropped.
+	 */
+	synchronized void beginRelocate(File from) {
+		relocating.add(getPrefix(from));
+	}
+
+	/**
+	 * Updates the pending images after the directory they were written to has been renamed and runs the images again
+	 * which found their file missing in the meantime.
+	 *
+	 * @param to
+	 *            new name of the directory, <code>null</code> if it could not be renamed
+	 */
+	synchronized void relocate(File from, File to) {
+		String prefix = getPrefix(from);
+		relocating.remove(prefix);
+		List<Job> moved = new ArrayList<>();
+		for (int i = parked.size() - 1; i >= 0; i--) {
+			if (parked.get(i).file.getAbsolutePath().startsWith(prefix)) {
+				moved.add(parked.remove(i));
+			}
+		}
+		if (to != null) {
+			String replacement = getPrefix(to);
+			for (Job job : pending) {
+				String path = job.file.getAbsolutePath();
+				if (path.startsWith(prefix)) {
+					job.file = new File(replacement + path.substring(prefix.length()));
+				}
+			}
+		}
+		for (Job job : moved) {
+			if (to != null) {
+				executor.execute(job);
+			} else {
+				pending.remove(job);
+			}
+		}
+	}
+
+	/**
+	 * Keeps a job whose file is missing for another run once its directory has been renamed.
+	 *
+	 * @param source
+	 *            the file the job found missing
+	 * @return <code>false</code> if the file is not being moved and the job has to be dropped
+	 */
+	private synchronized boolean park(Job job, File source) {
+		if (!job.file.equals(source)) {
+			// relocated in the meantime
+			executor.execute(job);
+			return true;
+		}
+		if (isRelocating(source)) {
+			parked.add(job);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean isRelocating(File file) {
+		String path = file.getAbsolutePath();
+		for (String prefix : relocating) {
+			if (path.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getPrefix(File dir) {
+		return dir.getAbsolutePath() + File.separator;
+	}
+
+	/**
+	 * @return <code>false</code> if the image could not be decoded
+	 */
+	private boolean generate(File thumbnail, File source) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(source.getPath(), options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return false;
+		}
+
+		// decode a power of two smaller right away, which is much cheaper than scaling the full image
+		int largest = Math.max(options.outWidth, options.outHeight);
+		int sampleSize = 1;
+		while (largest / (sampleSize * 2) >= maxSize) {
+			sampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeFile(source.getPath(), options);
+		if (bitmap == null) {
+			return false;
+		}
+
+		try {
+			float scale = maxSize / (float) Math.max(bitmap.getWidth(), bitmap.getHeight());
+			if (scale < 1) {
+				Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+						Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+				if (scaled != bitmap) {
+					bitmap.recycle();
+					bitmap = scaled;
+				}
+			}
+			write(thumbnail, bitmap);
+		} finally {
+			bitmap.recycle();
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the thumbnail by a rename, so readers never see half of it.
+	 */
+	private void write(File file, Bitmap bitmap) throws IOException {
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+			throw new IOException("Cannot create " + cacheDir);
+		}
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			// keep transparency, photos are much smaller as jpeg
+			Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+			if (!bitmap.compress(format, JPEG_QUALITY, out)) {
+				throw new IOException("Cannot encode " + file);
+			}
+		} finally {
+			out.close();
+		}
+		long replaced = file.length();
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot replace " + file);
+		}
+		added(file.length() - replaced);
+	}
+
+	/**
+	 * Counts the bytes just written to the cache and evicts the least recently used thumbnails once it is full, down
+	 * to three quarters of the limit so the directory is not listed after every image.
+	 */
+	private void added(long bytes) {
+		synchronized (cacheLock) {
+			if (cacheSize < 0) {
+				cacheSize = 0;
+				for (File file : listCache()) {
+					cacheSize += file.length();
+				}
+			} else {
+				cacheSize += bytes;
+			}
+			long limit = maxCacheSize;
+			if (cacheSize <= limit) {
+				return;
+			}
+
+			File[] files = listCache();
+			final long[] modified = new long[files.length];
+			Integer[] order = new Integer[files.length];
+			long size = 0;
+			for (int i = 0; i < files.length; i++) {
+				modified[i] = files[i].lastModified();
+				order[i] = i;
+				size += files[i].length();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+					return Long.compare(modified[lhs], modified[rhs]);
+				}
+			});
+			long target = limit / 4 * 3;
+			for (int i = 0; i < order.length && size > target; i++) {
+				File file = files[order[i]];
+				long length = file.length();
+				if (file.delete()) {
+					size -= length;
+				}
+			}
+			cacheSize = size;
+		}
+	}
+
+	/**
+	 * @return the thumbnails, without the files still being written
+	 */
+	private File[] listCache() {
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		List<File> thumbnails = new ArrayList<>(files.length);
+		for (File file : files) {
+			if (!file.getName().endsWith(".tmp")) {
+				thumbnails.add(file);
+			}
+		}
+		return thumbnails.toArray(new File[thumbnails.size()]);
+	}
+
+	private static boolean isImage(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) {
+			return false;
+		}
+		String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+				name.substring(dot + 1).toLowerCase(Locale.US));
+		return mimeType != null && mimeType.startsWith("image/");
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.File;
+
+/**
+ * Receives the events of an extraction run by an {@link Unpacker}. Except for {@link #onStart(long, int)} and
+ * {@link #onFinish(long, Throwable)} the methods may be called concurrently from several worker threads.
+ */
+public interface UnpackObserver {
+
+	/**
+	 * Called before the first entry is written.
+	 *
+	 * @param bytesTotal
+	 *            uncompressed size of all entries, or {@link ArchiveEntry#UNKNOWN} when extracting from a stream
+	 * @param entryCount
+	 *            number of entries, or -1 when extracting from a stream
+	 */
+	void onStart(long bytesTotal, int entryCount);
+
+	/**
+	 * Called after the file of an entry has been written completely. Not called for directories and for files found
+	 * unchanged since the previous installation.
+	 */
+	void onFileWritten(ArchiveEntry entry, File file);
+
+	/**
+	 * Called after an entry has been written completely or found unchanged.
+	 */
+	void onEntryExtracted(ArchiveEntry entry);
+
+	/**
+	 * Called after a file of the previous installation has been deleted because the archive no longer contains it, see
+	 * {@link Unpacker#setDeleteRemoved(boolean)}.
+	 */
+	void onFileRemoved(String name, File file);
+
+	/**
+	 * Called at most once per {@link Unpacker#setProgressInterval(long) progress interval} while extracting and always
+	 * once more when the extraction has ended, successfully or not.
+	 *
+	 * @param bytesDone
+	 *            uncompressed bytes written or found unchanged so far
+	 * @param bytesTotal
+	 *            see {@link #onStart(long, int)}
+	 */
+	void onProgress(long bytesDone, long bytesTotal);
+
+	/**
+	 * Called once the extraction has ended.
+	 *
+	 * @param failure
+	 *            <code>null</code> on success, otherwise the exception the extraction is about to throw
+	 */
+	void onFinish(long bytesDone, Throwable failure);
+
+	/**
+	 * Observer ignoring all events, to be extended by observers interested in a few of them only.
+	 */
+	class Adapter implements UnpackObserver {
+
+		@Override
+		public void onStart(long bytesTotal, int entryCount) {
+		}
+
+		@Override
+		public void onFileWritten(ArchiveEntry entry, File file) {
+		}
+
+		@Override
+		public void onEntryExtracted(ArchiveEntry entry) {
+		}
+
+		@Override
+		public void onFileRemoved(String name, File file) {
+		}
+
+		@Override
+		public void onProgress(long bytesDone, long bytesTotal) {
+		}
+
+		@Override
+		public void onFinish(long bytesDone, Throwable failure) {
+		}
+	}
+}
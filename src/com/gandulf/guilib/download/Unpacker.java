@@ -0,0 +1,1422 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Extracts an archive into a directory. A downloaded zip archive is accessed randomly through its central directory
+ * and the file entries are inflated in parallel on a bounded pool of worker threads. An archive that is still being
+ * transferred, or one of another {@link ArchiveExtractor format} like tar.gz, is extracted sequentially from a stream
+ * instead.
+ * <p>
+ * This class is the platform independent core of the download package, it does not depend on the Android framework.
+ * The progress of an extraction is reported to the registered {@link UnpackObserver}s, the UnzipIntentService
+ * merely adapts it to the DownloadManager and to notifications.
+ */
+public class Unpacker {
+
+	/**
+	 * File system calls made by an extraction, to compare the cost of extracting onto different storages.
+	 */
+	public static class Statistics {
+
+		private final long statCalls;
+		private final long mkdirCalls;
+		private final long accessCalls;
+		private final long openCalls;
+		private final long directoryCacheHits;
+
+		Statistics(long statCalls, long mkdirCalls, long accessCalls, long openCalls, long directoryCacheHits) {
+			this.statCalls = statCalls;
+			this.mkdirCalls = mkdirCalls;
+			this.accessCalls = accessCalls;
+			this.openCalls = openCalls;
+			this.directoryCacheHits = directoryCacheHits;
+		}
+
+		/**
+		 * @return number of checks whether a directory exists
+		 */
+		public long getStatCalls() {
+			return statCalls;
+		}
+
+		public long getMkdirCalls() {
+			return mkdirCalls;
+		}
+
+		/**
+		 * @return number of checks whether a directory is writable
+		 */
+		public long getAccessCalls() {
+			return accessCalls;
+		}
+
+		/**
+		 * @return number of files created or truncated
+		 */
+		public long getOpenCalls() {
+			return openCalls;
+		}
+
+		/**
+		 * @return number of directory checks saved because the directory was already known to be writable
+		 */
+		public long getDirectoryCacheHits() {
+			return directoryCacheHits;
+		}
+
+		public long getSyscalls() {
+			return statCalls + mkdirCalls + accessCalls + openCalls;
+		}
+
+		@Override
+		public String toString() {
+			return "statCalls=" + statCalls + ", mkdirCalls=" + mkdirCalls + ", accessCalls=" + accessCalls
+					+ ", openCalls=" + openCalls + ", directoryCacheHits=" + directoryCacheHits;
+		}
+	}
+
+	/**
+	 * Marks sections of an extraction in a trace, i.e. for systrace on Android. A section is always ended on the thread
+	 * that began it.
+	 */
+	public interface Tracer {
+
+		void beginSection(String name);
+
+		void endSection();
+	}
+
+	/**
+	 * Reserves the storage of a file before it is written, so it is neither fragmented nor cut short by a full disk
+	 * halfway through. Implemented with <code>posix_fallocate</code> on Android.
+	 */
+	public interface Allocator {
+
+		/**
+		 * @param length
+		 *            final size of the file, which is still empty
+		 * @throws IOException
+		 *             if the storage is full, other failures should be ignored as the file can be written anyway
+		 */
+		void allocate(FileDescriptor fd, long length) throws IOException;
+	}
+
+	/**
+	 * Files of at least this size are preallocated by default.
+	 */
+	public static final long DEFAULT_PREALLOCATE_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * Space that has to remain free after an extraction by default, for the manifest, directories and the like.
+	 */
+	public static final long DEFAULT_RESERVED_SPACE = 1024 * 1024;
+
+	private static final Tracer NO_TRACER = new Tracer() {
+		@Override
+		public void beginSection(String name) {
+		}
+
+		@Override
+		public void endSection() {
+		}
+	};
+
+	/**
+	 * Upper bound of a single channel transfer, keeps cancellation responsive for huge stored entries.
+	 */
+	private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+	/**
+	 * Buffer of archives read sequentially from a channel.
+	 */
+	private static final int STREAM_BUFFER = 65536;
+
+	private static final Comparator<ArchiveEntry> LARGEST_FIRST = new Comparator<ArchiveEntry>() {
+		@Override
+		public int compare(ArchiveEntry lhs, ArchiveEntry rhs) {
+			return lhs.getSize() < rhs.getSize() ? 1 : (lhs.getSize() == rhs.getSize() ? 0 : -1);
+		}
+	};
+
+	private static final ThreadLocal<CRC32> CHECKSUMS = new ThreadLocal<CRC32>() {
+		@Override
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return newDigest();
+		}
+	};
+
+	/**
+	 * Swallows the content of an entry that is only hashed.
+	 */
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private final File targetDir;
+
+	private BufferPool bufferPool = BufferPool.getDefault();
+
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+
+	private final List<UnpackObserver> observers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Passes the events on to all observers, the time they take is recorded as {@link ExtractionMetrics.Phase#NOTIFY}.
+	 */
+	private final UnpackObserver dispatcher = new UnpackObserver() {
+
+		@Override
+		public void onStart(long bytesTotal, int entryCount) {
+			long start = System.nanoTime();
+			for (UnpackObserver observer : observers) {
+				observer.onStart(bytesTotal, entryCount);
+			}
+			metrics.addPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+		}
+
+		@Override
+		public void onFileWritten(ArchiveEntry entry, File file) {
+			long start = System.nanoTime();
+			for (UnpackObserver observer : observers) {
+				observer.onFileWritten(entry, file);
+			}
+			metrics.addPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+		}
+
+		@Override
+		public void onEntryExtracted(ArchiveEntry entry) {
+			metrics.countEntry();
+			long start = System.nanoTime();
+			for (UnpackObserver observer : observers) {
+				observer.onEntryExtracted(entry);
+			}
+			metrics.addPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+		}
+
+		@Override
+		public void onFileRemoved(String name, File file) {
+			long start = System.nanoTime();
+			for (UnpackObserver observer : observers) {
+				observer.onFileRemoved(name, file);
+			}
+			metrics.addPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+		}
+
+		@Override
+		public void onProgress(long bytesDone, long bytesTotal) {
+			tracer.beginSection("Unpacker.notify");
+			long start = System.nanoTime();
+			try {
+				for (UnpackObserver observer : observers) {
+					observer.onProgress(bytesDone, bytesTotal);
+				}
+			} finally {
+				metrics.addPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+				tracer.endSection();
+			}
+		}
+
+		@Override
+		public void onFinish(long bytesDone, Throwable failure) {
+			long start = System.nanoTime();
+			for (UnpackObserver observer : observers) {
+				observer.onFinish(bytesDone, failure);
+			}
+			metrics.addPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+		}
+	};
+
+	private long progressInterval = 250;
+
+	private volatile ProgressTracker progress = new ProgressTracker(dispatcher, 0, ArchiveEntry.UNKNOWN);
+
+	private volatile DirectoryCache directories = new DirectoryCache();
+
+	private final AtomicLong openCalls = new AtomicLong();
+
+	private volatile MetricsRecorder metrics = new MetricsRecorder();
+
+	private Tracer tracer = NO_TRACER;
+
+	private File checkpointFile;
+
+	private File manifestFile;
+
+	private boolean deleteRemoved;
+
+	private ContentStore contentStore;
+
+	private IntegrityManifest expectedDigests;
+
+	private Allocator allocator;
+
+	private long preallocateThreshold = DEFAULT_PREALLOCATE_THRESHOLD;
+
+	private long reservedSpace = DEFAULT_RESERVED_SPACE;
+
+	private volatile ContentStore.Session contentSession;
+
+	/**
+	 * Names of the files installed before that are written again. These are replaced by new files instead of being
+	 * overwritten, as they may be hard links shared with another directory.
+	 */
+	private volatile Set<String> replacedNames = Collections.emptySet();
+
+	private volatile boolean canceled;
+
+	public Unpacker(File targetDir) {
+		this.targetDir = targetDir;
+	}
+
+	public File getTargetDir() {
+		return targetDir;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * @param threadCount
+	 *            maximum number of entries inflated at the same time, defaults to the number of available cores
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+		}
+		this.threadCount = threadCount;
+	}
+
+	public void addObserver(UnpackObserver observer) {
+		observers.add(observer);
+	}
+
+	public void removeObserver(UnpackObserver observer) {
+		observers.remove(observer);
+	}
+
+	public long getProgressInterval() {
+		return progressInterval;
+	}
+
+	/**
+	 * @param progressInterval
+	 *            minimum number of milliseconds between two progress reports, defaults to 250 (4 per second)
+	 */
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @param bufferPool
+	 *            pool providing the buffers and inflaters, defaults to the {@link BufferPool#getDefault() shared pool}
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * @param checkpointFile
+	 *            file to record completed entries in. If set, an extraction of an archive that was interrupted before
+	 *            skips all entries that have already been written and verified. The file is deleted once the
+	 *            extraction succeeds.
+	 */
+	public void setCheckpointFile(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	public File getManifestFile() {
+		return manifestFile;
+	}
+
+	/**
+	 * @param manifestFile
+	 *            file describing the entries installed by the last extraction into the target directory. If set,
+	 *            entries whose name, size and CRC match an installed file are skipped without being inflated, and the
+	 *            manifest is updated once the extraction succeeds.
+	 */
+	public void setManifestFile(File manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	public boolean isDeleteRemoved() {
+		return deleteRemoved;
+	}
+
+	/**
+	 * @param deleteRemoved
+	 *            whether files listed in the manifest but missing in the new archive are deleted after a successful
+	 *            extraction, requires a {@link #setManifestFile(File) manifest}. Files still listed by the manifest of
+	 *            another package in the same directory are kept.
+	 */
+	public void setDeleteRemoved(boolean deleteRemoved) {
+		this.deleteRemoved = deleteRemoved;
+	}
+
+	public ContentStore getContentStore() {
+		return contentStore;
+	}
+
+	/**
+	 * @param contentStore
+	 *            store keeping each distinct file content once, <code>null</code> to write every file. A directory
+	 *            installed through a store should keep using it, otherwise its path index may go stale.
+	 */
+	public void setContentStore(ContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	public IntegrityManifest getExpectedDigests() {
+		return expectedDigests;
+	}
+
+	/**
+	 * @param expectedDigests
+	 *            SHA-256 digests the archive and its entries must have, computed while the data is extracted anyway.
+	 *            <code>null</code> to rely on the CRCs of the archive only. Entries skipped as unchanged or completed
+	 *            by an interrupted run are not read again, they were checked when they were written.
+	 */
+	public void setExpectedDigests(IntegrityManifest expectedDigests) {
+		this.expectedDigests = expectedDigests;
+	}
+
+	public Allocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * @param allocator
+	 *            reserves the storage of large files before they are written, <code>null</code> to write them only
+	 */
+	public void setAllocator(Allocator allocator) {
+		this.allocator = allocator;
+	}
+
+	public long getPreallocateThreshold() {
+		return preallocateThreshold;
+	}
+
+	/**
+	 * @param preallocateThreshold
+	 *            minimum size of the files passed to the {@link #setAllocator(Allocator) allocator}, defaults to 1 MiB
+	 */
+	public void setPreallocateThreshold(long preallocateThreshold) {
+		this.preallocateThreshold = preallocateThreshold;
+	}
+
+	public long getReservedSpace() {
+		return reservedSpace;
+	}
+
+	/**
+	 * @param reservedSpace
+	 *            bytes that have to remain free on the storage of the target directory after a zip archive has been
+	 *            extracted, defaults to 1 MiB. The extraction fails with an {@link InsufficientSpaceException} before
+	 *            writing anything otherwise.
+	 */
+	public void setReservedSpace(long reservedSpace) {
+		this.reservedSpace = reservedSpace;
+	}
+
+	public Tracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * @param tracer
+	 *            receives the sections of the extraction, <code>null</code> to disable tracing
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer != null ? tracer : NO_TRACER;
+	}
+
+	/**
+	 * @return totals and timings of the running or last extraction
+	 */
+	public ExtractionMetrics getMetrics() {
+		return metrics.snapshot();
+	}
+
+	/**
+	 * @return the file system calls of the running or last extraction
+	 */
+	public Statistics getStatistics() {
+		DirectoryCache directories = this.directories;
+		return new Statistics(directories.statCalls.get(), directories.mkdirCalls.get(),
+				directories.accessCalls.get(), openCalls.get(), directories.hits.get());
+	}
+
+	/**
+	 * Stops a running extraction, {@link #extract(FileChannel)} will throw a {@link CancellationException}.
+	 */
+	public void cancel() {
+		canceled = true;
+	}
+
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	/**
+	 * Extracts all entries of the zip archive readable through the given channel. Only positional reads are used on
+	 * the channel, its position is left untouched.
+	 *
+	 * @throws IOException
+	 *             if the archive is corrupt or an entry could not be written
+	 * @throws CancellationException
+	 *             if {@link #cancel()} has been called
+	 */
+	public void extract(FileChannel channel) throws IOException {
+		extract(channel, null);
+	}
+
+	/**
+	 * Extracts the archive readable through the given channel. Zip archives are extracted in parallel through their
+	 * central directory, archives of other {@link ArchiveExtractors formats} are read sequentially.
+	 *
+	 * @param contentType
+	 *            mime type announced for the archive, used if its format is not recognized by its first bytes
+	 * @see #extract(FileChannel)
+	 */
+	public void extract(final FileChannel channel, String contentType) throws IOException {
+		ArchiveExtractor extractor = ArchiveExtractors.find(contentType, channel);
+		if (extractor != null && extractor != ArchiveExtractors.ZIP) {
+			extract(new BufferedInputStream(new ChannelInputStream(channel, 0, channel.size()), STREAM_BUFFER),
+					extractor);
+			return;
+		}
+
+		resetStatistics();
+		tracer.beginSection("Unpacker.extract");
+		try {
+			contentSession = contentStore != null ? contentStore.open(targetDir) : null;
+			List<ArchiveEntry> entries = ZipCentralDirectory.read(channel);
+
+			long totalSize = 0;
+			for (ArchiveEntry entry : entries) {
+				totalSize += entry.getSize();
+			}
+			progress = new ProgressTracker(dispatcher, progressInterval, totalSize);
+			dispatcher.onStart(totalSize, entries.size());
+			Throwable failure = null;
+			try {
+				extractEntries(channel, entries);
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+				throw e;
+			} finally {
+				progress.finish();
+				dispatcher.onFinish(progress.getDone(), failure);
+			}
+		} finally {
+			closeContent();
+			metrics.finish();
+			tracer.endSection();
+		}
+	}
+
+	private void extractEntries(FileChannel channel, List<ArchiveEntry> entries) throws IOException {
+
+		List<ArchiveEntry> files = new ArrayList<>(entries.size());
+		List<ArchiveEntry> folders = new ArrayList<>();
+		for (ArchiveEntry entry : entries) {
+			if (entry.isDirectory()) {
+				folders.add(entry);
+			} else {
+				files.add(entry);
+			}
+		}
+
+		IntegrityManifest expected = expectedDigests;
+		if (expected != null) {
+			Set<String> names = new HashSet<>(files.size() * 2);
+			for (ArchiveEntry entry : files) {
+				names.add(entry.getName());
+			}
+			checkExpectedNames(expected, names);
+		}
+
+		InstallManifest manifest = null;
+		List<ArchiveEntry> changed = files;
+		boolean update = false;
+		if (manifestFile != null) {
+			manifest = InstallManifest.load(manifestFile);
+			if (!manifest.isEmpty()) {
+				update = true;
+				changed = new ArrayList<>(files.size());
+				Set<String> replaced = new HashSet<>();
+				for (ArchiveEntry entry : files) {
+					if (manifest.isInstalled(entry, getInstalledFile(entry.getName()))) {
+						progress.add(entry.getSize());
+						dispatcher.onEntryExtracted(entry);
+					} else {
+						changed.add(entry);
+						if (manifest.getNames().contains(entry.getName())) {
+							replaced.add(entry.getName());
+							manifest.remove(entry.getName());
+						}
+					}
+				}
+				replacedNames = replaced;
+			}
+		}
+
+		ExtractionCheckpoint checkpoint = checkpointFile != null ? ExtractionCheckpoint.open(checkpointFile) : null;
+		try {
+			checkSpace(changed, checkpoint);
+			// hashing reads the whole archive, an install bound to fail for lack of space fails before
+			if (expected != null && expected.getArchiveDigest() != null) {
+				verifyArchive(channel, expected.getArchiveDigest());
+			}
+
+			// create all folders up front, so the workers never race on mkdirs of the same tree
+			for (ArchiveEntry entry : folders) {
+				ensureDirectory(resolve(entry.getName()));
+				dispatcher.onEntryExtracted(entry);
+			}
+			// forget the files about to be overwritten first, so an interrupted update never vouches for them
+			if (update && !changed.isEmpty()) {
+				saveManifest(manifest);
+			}
+
+			// start with the largest entries, so a single huge file does not end up as the tail of the job
+			Collections.sort(changed, LARGEST_FIRST);
+			extractFiles(channel, changed, checkpoint);
+		} catch (IOException | RuntimeException e) {
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+			throw e;
+		}
+
+		if (manifest != null) {
+			updateManifest(manifest, files);
+		} else {
+			finishContent();
+		}
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+	}
+
+	/**
+	 * Records the entries of the archive just extracted as installed, deleting files of the previous installation
+	 * which are no longer part of it if requested.
+	 */
+	private void updateManifest(InstallManifest manifest, List<ArchiveEntry> files) throws IOException {
+		Set<String> names = new HashSet<>(files.size() * 2);
+		for (ArchiveEntry entry : files) {
+			names.add(entry.getName());
+			manifest.put(entry);
+		}
+		Set<String> shared = null;
+		for (String name : new ArrayList<>(manifest.getNames())) {
+			if (!names.contains(name)) {
+				if (deleteRemoved) {
+					if (shared == null) {
+						shared = getSharedNames();
+					}
+					if (!shared.contains(name)) {
+						File removed = resolve(name);
+						if (removed.exists() && !removed.delete()) {
+							throw new IOException("Cannot delete " + removed);
+						}
+						dispatcher.onFileRemoved(name, removed);
+						if (contentSession != null) {
+							contentSession.remove(name);
+						}
+					}
+				}
+				manifest.remove(name);
+			}
+		}
+		// the files must be reachable before the manifest vouches for them
+		finishContent();
+		saveManifest(manifest);
+	}
+
+	/**
+	 * @return the names listed by the manifests of the other packages installed next to this one
+	 */
+	private Set<String> getSharedNames() throws IOException {
+		Set<String> names = new HashSet<>();
+		File dir = manifestFile.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			for (File file : InstallManifest.listFiles(dir)) {
+				if (!file.getName().equals(manifestFile.getName())) {
+					names.addAll(InstallManifest.load(file).getNames());
+				}
+			}
+		}
+		return names;
+	}
+
+	private void finishContent() throws IOException {
+		if (contentSession != null) {
+			contentSession.finish();
+		}
+	}
+
+	/**
+	 * Ends the session with the content store, which then deletes the objects this extraction replaced or removed.
+	 */
+	private void closeContent() {
+		if (contentSession != null) {
+			contentSession.close();
+		}
+	}
+
+	private void saveManifest(InstallManifest manifest) throws IOException {
+		tracer.beginSection("Unpacker.saveManifest");
+		long start = System.nanoTime();
+		try {
+			manifest.save(manifestFile);
+		} finally {
+			metrics.addPhase(ExtractionMetrics.Phase.FSYNC, System.nanoTime() - start);
+			tracer.endSection();
+		}
+	}
+
+	private void extractFiles(final FileChannel channel, final List<ArchiveEntry> files,
+			final ExtractionCheckpoint checkpoint) throws IOException {
+		int workers = Math.min(threadCount, files.size());
+		if (workers <= 1) {
+			for (ArchiveEntry entry : files) {
+				checkCanceled();
+				extractEntry(channel, entry, checkpoint);
+			}
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean failed = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+		try {
+			List<Future<Void>> futures = new ArrayList<>(workers);
+			for (int i = 0; i < workers; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						try {
+							for (int index = next.getAndIncrement(); index < files.size() && !failed.get(); index = next
+									.getAndIncrement()) {
+								checkCanceled();
+								extractEntry(channel, files.get(index), checkpoint);
+							}
+						} catch (IOException | RuntimeException e) {
+							failed.set(true);
+							throw e;
+						}
+						return null;
+					}
+				}));
+			}
+
+			Throwable failure = null;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure != null) {
+				throw new IOException(failure);
+			}
+		} catch (InterruptedException e) {
+			failed.set(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Extraction interrupted");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Extracts an archive while it is read sequentially from the given stream, e.g. straight from a network
+	 * connection. Entries are written one after another as soon as their bytes arrive. The stream is closed when done.
+	 * The format is recognized by the first bytes, see {@link ArchiveExtractors}.
+	 *
+	 * @throws IOException
+	 *             if the archive is corrupt, the stream fails or an entry could not be written
+	 * @throws CancellationException
+	 *             if {@link #cancel()} has been called
+	 */
+	public void extract(InputStream in) throws IOException {
+		extract(in, (String) null);
+	}
+
+	/**
+	 * @param contentType
+	 *            mime type announced for the archive, used if its format is not recognized by its first bytes
+	 * @see #extract(InputStream)
+	 */
+	public void extract(InputStream in, String contentType) throws IOException {
+		if (!in.markSupported()) {
+			in = new BufferedInputStream(in, ArchiveExtractor.MAGIC_LENGTH);
+		}
+		ArchiveExtractor extractor = ArchiveExtractors.find(contentType, in);
+		if (extractor == null) {
+			in.close();
+			throw new ZipException("Unsupported archive format " + (contentType != null ? contentType : ""));
+		}
+		extract(in, extractor);
+	}
+
+	/**
+	 * Extracts an archive of the given format while it is read sequentially from the stream.
+	 *
+	 * @see #extract(InputStream)
+	 */
+	public void extract(InputStream in, ArchiveExtractor extractor) throws IOException {
+		resetStatistics();
+		tracer.beginSection("Unpacker.extract");
+		progress = new ProgressTracker(dispatcher, progressInterval, ArchiveEntry.UNKNOWN);
+		dispatcher.onStart(ArchiveEntry.UNKNOWN, -1);
+		Throwable failure = null;
+		try {
+			contentSession = contentStore != null ? contentStore.open(targetDir) : null;
+			IntegrityManifest expected = expectedDigests;
+			DigestInputStream archiveIn = null;
+			if (expected != null && expected.getArchiveDigest() != null) {
+				archiveIn = new DigestInputStream(in, newDigest());
+			}
+			extractStream(extractor.open(archiveIn != null ? archiveIn : in), expected, archiveIn);
+		} catch (IOException | RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			in.close();
+			closeContent();
+			progress.finish();
+			dispatcher.onFinish(progress.getDone(), failure);
+			metrics.finish();
+			tracer.endSection();
+		}
+	}
+
+	private void extractStream(ArchiveExtractor.EntryReader reader, IntegrityManifest expected,
+			DigestInputStream archiveIn) throws IOException {
+		InstallManifest manifest = null;
+		List<ArchiveEntry> files = null;
+		if (manifestFile != null) {
+			// entries cannot be skipped without reading them anyway, so the manifest is simply rebuilt
+			manifest = InstallManifest.load(manifestFile);
+			replacedNames = new HashSet<>(manifest.getNames());
+			if (manifestFile.exists() && !manifestFile.delete()) {
+				throw new IOException("Cannot delete " + manifestFile);
+			}
+			files = new ArrayList<>();
+		}
+		Set<String> written = expected != null ? new HashSet<String>() : null;
+
+		try {
+			for (ArchiveEntry header = reader.nextEntry(); header != null; header = reader.nextEntry()) {
+				checkCanceled();
+				long start = System.nanoTime();
+				File file = resolve(header.getName());
+				File temp = null;
+				String hash = null;
+				if (header.isDirectory()) {
+					ensureDirectory(file);
+				} else {
+					ensureDirectory(file.getParentFile());
+					// the checksum is not known before the data has been read, so the content cannot be looked up
+					if (contentSession != null) {
+						temp = contentStore.createTempFile();
+					} else {
+						replace(header.getName(), file);
+					}
+					String digest = getExpectedDigest(header.getName());
+					OutputStream out = create(temp != null ? temp : file, header.getSize());
+					try {
+						if (temp != null || digest != null) {
+							hash = copyAndHash(reader.getContent(), out, header);
+						} else {
+							copy(reader.getContent(), out, header);
+						}
+					} finally {
+						out.close();
+					}
+					if (digest != null) {
+						verifyDigest(header.getName(), digest, hash, temp != null ? temp : file);
+					}
+				}
+
+				// sizes and checksum are only known for sure after the entry data has been consumed
+				ArchiveEntry entry = reader.finishEntry();
+				if (temp != null) {
+					contentStore.commit(temp, hash, entry.getCrc(), entry.getSize());
+					file = contentSession.install(hash, entry.getName(), file);
+				}
+				if (!entry.isDirectory()) {
+					metrics.recordFile(entry.getCompressedSize(), entry.getSize(), System.nanoTime() - start);
+					if (files != null) {
+						files.add(entry);
+					}
+					if (written != null) {
+						written.add(entry.getName());
+					}
+					dispatcher.onFileWritten(entry, file);
+				}
+				dispatcher.onEntryExtracted(entry);
+			}
+
+			if (archiveIn != null) {
+				// the digest covers the whole archive, including the central directory or padding after the entries
+				drain(archiveIn);
+				verifyDigest("archive", expected.getArchiveDigest(), ContentStore.toHex(archiveIn.getMessageDigest()
+						.digest()), null);
+			}
+		} finally {
+			reader.close();
+		}
+		if (expected != null) {
+			checkExpectedNames(expected, written);
+		}
+
+		if (manifest != null) {
+			updateManifest(manifest, files);
+		} else {
+			finishContent();
+		}
+	}
+
+	/**
+	 * Fails if the files about to be written do not fit on the storage of the target directory. Files completed by an
+	 * interrupted run and content found in the store are not written again. Files replaced by an update are counted
+	 * in full, as the old ones may be links shared with the live version.
+	 */
+	private void checkSpace(List<ArchiveEntry> files, ExtractionCheckpoint checkpoint) throws IOException {
+		long required = 0;
+		for (ArchiveEntry entry : files) {
+			if (checkpoint != null && checkpoint.isComplete(entry, getInstalledFile(entry.getName()))) {
+				continue;
+			}
+			if (contentStore != null && !contentStore.find(entry.getCrc(), entry.getSize()).isEmpty()) {
+				continue;
+			}
+			required += entry.getSize();
+		}
+		if (required == 0) {
+			return;
+		}
+		required += reservedSpace;
+
+		File dir = targetDir.getAbsoluteFile();
+		while (dir != null && !dir.exists()) {
+			dir = dir.getParentFile();
+		}
+		if (dir == null) {
+			return;
+		}
+		long available = dir.getUsableSpace();
+		if (available < required) {
+			throw new InsufficientSpaceException(targetDir, required, available);
+		}
+	}
+
+	private void extractEntry(FileChannel channel, ArchiveEntry entry, ExtractionCheckpoint checkpoint)
+			throws IOException {
+		File file = resolve(entry.getName());
+		if (checkpoint != null && checkpoint.isComplete(entry, getInstalledFile(entry.getName()))) {
+			progress.add(entry.getSize());
+			// written by the interrupted run, which never got to report it
+			dispatcher.onFileWritten(entry, getInstalledFile(entry.getName()));
+			dispatcher.onEntryExtracted(entry);
+			return;
+		}
+
+		tracer.beginSection("Unpacker.entry");
+		long start = System.nanoTime();
+		try {
+			ensureDirectory(file.getParentFile());
+
+			String digest = getExpectedDigest(entry.getName());
+			if (contentSession != null) {
+				file = storeEntry(channel, entry, file, digest);
+			} else {
+				replace(entry.getName(), file);
+				if (entry.getMethod() == ZipEntry.STORED && digest == null) {
+					transfer(channel, entry, file);
+				} else {
+					InputStream in = ZipCentralDirectory.openEntry(channel, entry, bufferPool);
+					try {
+						OutputStream out = create(file, entry.getSize());
+						String hash = null;
+						try {
+							if (digest != null) {
+								hash = copyAndHash(in, out, entry);
+							} else {
+								copy(in, out, entry);
+							}
+						} finally {
+							out.close();
+						}
+						if (digest != null) {
+							verifyDigest(entry.getName(), digest, hash, file);
+						}
+					} finally {
+						in.close();
+					}
+				}
+			}
+		} finally {
+			tracer.endSection();
+		}
+		metrics.recordFile(entry.getCompressedSize(), entry.getSize(), System.nanoTime() - start);
+
+		if (checkpoint != null) {
+			checkpoint.record(entry);
+		}
+		dispatcher.onFileWritten(entry, file);
+		dispatcher.onEntryExtracted(entry);
+	}
+
+	/**
+	 * Installs an entry through the content store. Content stored before is recognized by hashing the entry, without
+	 * writing it again.
+	 *
+	 * @param digest
+	 *            expected SHA-256 digest of the entry, or <code>null</code>
+	 * @return the file holding the content of the entry
+	 */
+	private File storeEntry(FileChannel channel, ArchiveEntry entry, File file, String digest) throws IOException {
+		String hash = null;
+		List<String> candidates = contentStore.find(entry.getCrc(), entry.getSize());
+		if (!candidates.isEmpty()) {
+			InputStream in = ZipCentralDirectory.openEntry(channel, entry, bufferPool);
+			try {
+				hash = copyAndHash(in, DISCARD, entry);
+			} finally {
+				in.close();
+			}
+			if (!candidates.contains(hash)) {
+				hash = null;
+			}
+		}
+
+		if (hash == null) {
+			File temp = contentStore.createTempFile();
+			InputStream in = ZipCentralDirectory.openEntry(channel, entry, bufferPool);
+			try {
+				OutputStream out = create(temp, entry.getSize());
+				try {
+					hash = copyAndHash(in, out, entry);
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			if (digest != null) {
+				verifyDigest(entry.getName(), digest, hash, temp);
+			}
+			contentStore.commit(temp, hash, entry.getCrc(), entry.getSize());
+		} else if (digest != null) {
+			verifyDigest(entry.getName(), digest, hash, null);
+		}
+		return contentSession.install(hash, entry.getName(), file);
+	}
+
+	private String getExpectedDigest(String name) {
+		IntegrityManifest expected = expectedDigests;
+		return expected != null ? expected.getEntryDigest(name) : null;
+	}
+
+	/**
+	 * Fails unless every entry with an expected digest is part of the archive.
+	 */
+	private static void checkExpectedNames(IntegrityManifest expected, Collection<String> names)
+			throws ZipException {
+		for (String name : expected.getEntryNames()) {
+			if (!names.contains(name)) {
+				throw new ZipException("Missing entry " + name);
+			}
+		}
+	}
+
+	/**
+	 * Hashes the whole archive in one sequential read before anything is written. The workers then read the entries
+	 * from the page cache.
+	 */
+	private void verifyArchive(FileChannel channel, String digest) throws IOException {
+		MessageDigest archiveDigest = DIGESTS.get();
+		archiveDigest.reset();
+		InputStream in = new ChannelInputStream(channel, 0, channel.size());
+		byte[] data = bufferPool.acquire(STREAM_BUFFER);
+		tracer.beginSection("Unpacker.verifyArchive");
+		try {
+			int count;
+			while ((count = in.read(data, 0, data.length)) != -1) {
+				checkCanceled();
+				archiveDigest.update(data, 0, count);
+			}
+		} finally {
+			bufferPool.release(data);
+			tracer.endSection();
+		}
+		verifyDigest("archive", digest, ContentStore.toHex(archiveDigest.digest()), null);
+	}
+
+	/**
+	 * @param written
+	 *            file holding the content, deleted if it does not match
+	 */
+	private static void verifyDigest(String name, String expected, String actual, File written) throws ZipException {
+		if (!expected.equals(actual)) {
+			if (written != null) {
+				written.delete();
+			}
+			throw new ZipException("SHA-256 mismatch for " + name);
+		}
+	}
+
+	/**
+	 * Reads the rest of a stream, so everything of it has passed through its digest.
+	 */
+	private void drain(InputStream in) throws IOException {
+		byte[] data = bufferPool.acquire(STREAM_BUFFER);
+		try {
+			while (in.read(data, 0, data.length) != -1) {
+				checkCanceled();
+			}
+		} finally {
+			bufferPool.release(data);
+		}
+	}
+
+	/**
+	 * @return the file holding the installed content of the given entry, which differs from its path only for files
+	 *         listed in the path index of the content store
+	 */
+	private File getInstalledFile(String name) throws ZipException {
+		File file = resolve(name);
+		return contentSession != null ? contentSession.getFile(name, file) : file;
+	}
+
+	/**
+	 * Writes an uncompressed entry by transferring its bytes from the archive channel to the file channel, which
+	 * avoids writing them through the heap. The checksum is computed from each transferred region of the archive right
+	 * after the transfer, while it is still in the page cache.
+	 */
+	private void transfer(FileChannel channel, ArchiveEntry entry, File file) throws IOException {
+		if (entry.getSize() != entry.getCompressedSize()) {
+			throw new ZipException("Invalid size of stored entry " + entry.getName());
+		}
+		long position = ZipCentralDirectory.getDataOffset(channel, entry);
+		CRC32 crc = CHECKSUMS.get();
+		crc.reset();
+		byte[] data = bufferPool.acquire(entry.getSize());
+		long start = System.nanoTime();
+		long checksumNanos = 0;
+		FileOutputStream out = create(file, entry.getSize());
+		try {
+			FileChannel target = out.getChannel();
+			long count = 0;
+			while (count < entry.getSize()) {
+				checkCanceled();
+				long transferred = channel.transferTo(position + count, Math.min(TRANSFER_CHUNK, entry.getSize()
+						- count), target);
+				if (transferred <= 0) {
+					throw new EOFException("Unexpected end of archive in " + entry.getName());
+				}
+				long checksumStart = System.nanoTime();
+				updateChecksum(channel, position + count, transferred, data, crc, entry);
+				checksumNanos += System.nanoTime() - checksumStart;
+				count += transferred;
+				progress.add(transferred);
+			}
+		} finally {
+			out.close();
+			bufferPool.release(data);
+			metrics.addPhase(ExtractionMetrics.Phase.INFLATE, checksumNanos);
+			metrics.addPhase(ExtractionMetrics.Phase.WRITE, System.nanoTime() - start - checksumNanos);
+		}
+		if (entry.getCrc() != ArchiveEntry.UNKNOWN && crc.getValue() != entry.getCrc()) {
+			throw new ZipException("CRC mismatch for " + entry.getName());
+		}
+	}
+
+	/**
+	 * Adds a region of the archive to the checksum, read with positional reads into the given buffer.
+	 */
+	private static void updateChecksum(FileChannel channel, long position, long length, byte[] data, CRC32 crc,
+			ArchiveEntry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long done = 0;
+		while (done < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(data.length, length - done));
+			int count = channel.read(buffer, position + done);
+			if (count <= 0) {
+				throw new EOFException("Unexpected end of archive in " + entry.getName());
+			}
+			crc.update(data, 0, count);
+			done += count;
+		}
+	}
+
+	/**
+	 * Deletes the file of an entry installed before, so it is written as a new file.
+	 */
+	private void replace(String name, File file) throws IOException {
+		if (replacedNames.contains(name) && file.exists() && !file.delete()) {
+			throw new IOException("Cannot delete " + file);
+		}
+	}
+
+	/**
+	 * Opens a file for writing, preallocating it if it is large.
+	 *
+	 * @param size
+	 *            size the file will have, or {@link ArchiveEntry#UNKNOWN}
+	 */
+	private FileOutputStream create(File file, long size) throws IOException {
+		FileOutputStream out = open(file);
+		Allocator allocator = this.allocator;
+		if (allocator != null && size != ArchiveEntry.UNKNOWN && size >= preallocateThreshold) {
+			try {
+				allocator.allocate(out.getFD(), size);
+			} catch (IOException | RuntimeException e) {
+				out.close();
+				throw e;
+			}
+		}
+		return out;
+	}
+
+	private FileOutputStream open(File file) throws IOException {
+		openCalls.incrementAndGet();
+		try {
+			return new FileOutputStream(file);
+		} catch (FileNotFoundException e) {
+			// a read-only link into a content store, which must not be overwritten in place
+			if (!file.exists() || file.canWrite() || !file.delete()) {
+				throw e;
+			}
+			openCalls.incrementAndGet();
+			return new FileOutputStream(file);
+		}
+	}
+
+	private void ensureDirectory(File dir) throws IOException {
+		long start = System.nanoTime();
+		try {
+			directories.ensureWritable(dir);
+		} finally {
+			metrics.addPhase(ExtractionMetrics.Phase.DIRECTORIES, System.nanoTime() - start);
+		}
+	}
+
+	private void resetStatistics() {
+		replacedNames = Collections.emptySet();
+		directories = new DirectoryCache();
+		openCalls.set(0);
+		metrics = new MetricsRecorder();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Copies the content of an entry, verifies its checksum and computes its SHA-256 hash.
+	 *
+	 * @return the hash as hex string
+	 */
+	String copyAndHash(InputStream in, OutputStream out, ArchiveEntry entry) throws IOException {
+		MessageDigest digest = DIGESTS.get();
+		digest.reset();
+		copy(in, new DigestOutputStream(out, digest), entry);
+		return ContentStore.toHex(digest.digest());
+	}
+
+	/**
+	 * Copies the content of an entry and verifies its checksum.
+	 */
+	void copy(InputStream in, OutputStream out, ArchiveEntry entry) throws IOException {
+		CRC32 crc = CHECKSUMS.get();
+		crc.reset();
+		byte[] data = bufferPool.acquire(entry.getSize());
+		long inflateNanos = 0;
+		long writeNanos = 0;
+		try {
+			long start = System.nanoTime();
+			long time = start;
+			long total = 0;
+			int count;
+			while ((count = in.read(data, 0, data.length)) != -1) {
+				crc.update(data, 0, count);
+				long read = System.nanoTime();
+				inflateNanos += read - time;
+				checkCanceled();
+				out.write(data, 0, count);
+				writeNanos += System.nanoTime() - read;
+				total += count;
+				// progress reports are timed separately
+				progress.add(count);
+				time = System.nanoTime();
+			}
+			inflateNanos += System.nanoTime() - time;
+			bufferPool.recordThroughput(data.length, total, System.nanoTime() - start);
+		} finally {
+			bufferPool.release(data);
+			metrics.addPhase(ExtractionMetrics.Phase.INFLATE, inflateNanos);
+			metrics.addPhase(ExtractionMetrics.Phase.WRITE, writeNanos);
+		}
+		if (entry.getCrc() != ArchiveEntry.UNKNOWN && crc.getValue() != entry.getCrc()) {
+			throw new ZipException("CRC mismatch for " + entry.getName());
+		}
+	}
+
+	/**
+	 * Maps an entry name to a file below the target directory, rejecting names that would escape it.
+	 */
+	File resolve(String name) throws ZipException {
+		String normalized = name.replace('\\', '/');
+		if (normalized.startsWith("/") || normalized.equals("..") || normalized.startsWith("../")
+				|| normalized.contains("/../") || normalized.endsWith("/..")) {
+			throw new ZipException("Illegal entry name " + name);
+		}
+		return new File(targetDir, normalized);
+	}
+
+	void checkCanceled() {
+		if (canceled) {
+			throw new CancellationException("Extraction canceled");
+		}
+	}
+
+	/**
+	 * Counts the bytes done and passes them on to the observer, at most once per interval.
+	 */
+	private static class ProgressTracker {
+
+		private final UnpackObserver observer;
+		private final long intervalNanos;
+		private final long total;
+		private final AtomicLong done = new AtomicLong();
+		private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+
+		ProgressTracker(UnpackObserver observer, long intervalMillis, long total) {
+			this.observer = observer;
+			this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+			this.total = total;
+		}
+
+		void add(long bytes) {
+			long current = done.addAndGet(bytes);
+			long now = System.nanoTime();
+			long last = lastReport.get();
+			// only the thread winning the swap reports, the others just count
+			if (now - last >= intervalNanos && lastReport.compareAndSet(last, now)) {
+				observer.onProgress(current, total);
+			}
+		}
+
+		long getDone() {
+			return done.get();
+		}
+
+		void finish() {
+			observer.onProgress(done.get(), total);
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Unpacker-" + count.incrementAndGet());
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		}
+	}
+}
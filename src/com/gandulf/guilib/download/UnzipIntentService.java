@@ -1,59 +1,746 @@
 package com.gandulf.guilib.download;
 
+import android.annotation.TargetApi;
 import android.app.DownloadManager;
-import android.app.IntentService;
-import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
-import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.NotificationManagerCompat;
+import android.support.v4.os.TraceCompat;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
-import com.gandulf.guilib.R;
-
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
 
-public class UnzipIntentService extends IntentService {
+/**
+ * Android adapter of the {@link Unpacker}: extracts finished downloads of the DownloadManager or archives streamed
+ * from a url, shows the progress in a notification and broadcasts the result. Downloads may also be kept as they are
+ * and read on demand through an {@link ArchiveIndex}.
+ * <p>
+ * Despite its name the service runs up to {@link #setMaxConcurrentJobs(int) a few} jobs at the same time. Waiting jobs
+ * are started smallest archive first, so a small package does not wait for a huge one to finish. Jobs for the same
+ * output directory run one after another, as they share its files.
+ */
+public class UnzipIntentService extends Service {
 
     private static final String TAG="Downloader";
 
 	public static final String INTENT_DOWNLOAD_ID = "downloadId";
 	public static final String INTENT_OUTPUT_URI = "outputURI";
+	/**
+	 * Optional url of an archive that is downloaded and extracted in one pass instead of a finished download.
+	 */
+	public static final String INTENT_SOURCE_URL = "sourceURL";
+	/**
+	 * Optional boolean, whether files of the previously installed package that are missing in the new archive are
+	 * deleted.
+	 */
+	public static final String INTENT_DELETE_REMOVED = "deleteRemoved";
+	/**
+	 * Optional boolean, whether the finished download is kept as {@link #getArchiveFile(File, String) archive} in the
+	 * output directory instead of being extracted.
+	 */
+	public static final String INTENT_KEEP_ARCHIVE = "keepArchive";
+	/**
+	 * Optional long, size of the archive in bytes used to order the waiting jobs. Jobs of unknown size are started
+	 * after all others.
+	 */
+	public static final String INTENT_ARCHIVE_SIZE = "archiveSize";
+	/**
+	 * Optional {@link InstallMode} as serializable extra, the current settings of the service are used without it.
+	 */
+	public static final String INTENT_INSTALL_MODE = "installMode";
 
 	public static final int UNZIP_ID = 1;
 
+	/**
+	 * Broadcast after each job with its {@link #INTENT_RESULT} and the {@link #INTENT_DOWNLOAD_ID} or
+	 * {@link #INTENT_SOURCE_URL} of the archive.
+	 */
 	public static final String ACTION_UNZIP_COMPLETE = "com.dsatab.intent.action.ACTION_UNZIP_COMPLETE";
 	public static final String INTENT_RESULT = "result";
+	/**
+	 * The {@link ExtractionMetrics} of the job as serializable extra of {@link #ACTION_UNZIP_COMPLETE}, missing if
+	 * the extraction could not be started. The media scan is still running when the result is broadcast, its phase is
+	 * only reported to the {@link MetricsListener}.
+	 */
+	public static final String INTENT_METRICS = "metrics";
 
 	public static final int RESULT_OK = 1;
 	public static final int RESULT_ERROR = 2;
 	public static final int RESULT_CANCELED = 3;
 
-	public UnzipIntentService() {
-		super("UnzipIntentService");
+	/**
+	 * Mime type of the extracted files that are handed to the media scanner.
+	 */
+	private static final String MEDIA_MIME_TYPE = "image/*";
+
+	/**
+	 * Maximum number of milliseconds to wait for the media scanner before the metrics are reported without it.
+	 */
+	private static final long MEDIA_SCAN_TIMEOUT = 60000;
+
+	public static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+
+	private static volatile int maxConcurrentJobs = DEFAULT_MAX_CONCURRENT_JOBS;
+
+	/**
+	 * Order in which jobs of the same size were started.
+	 */
+	private static final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Receives the totals and timings of every extraction run by the service.
+	 */
+	public interface MetricsListener {
+
+		/**
+		 * Called once the written media files of a successful extraction have been scanned, on a thread of the media
+		 * scanner or the main thread. Other results are reported right away on the worker thread.
+		 *
+		 * @param result
+		 *            one of the result codes
+		 */
+		void onExtractionFinished(File targetDir, int result, ExtractionMetrics metrics);
+	}
+
+	private static volatile MetricsListener metricsListener;
+
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	private static volatile ContentStore contentStore;
+
+	private static volatile boolean stagedInstalls;
+
+	private static volatile boolean preallocateFiles = true;
+
+	private static volatile ThumbnailGenerator thumbnailGenerator;
+
+	/**
+	 * Stores and generators by their directory, for the install modes of jobs queued by an earlier process. Guarded by
+	 * the class.
+	 */
+	private static final Map<File, ContentStore> contentStores = new HashMap<>();
+
+	private static final Map<File, ThumbnailGenerator> thumbnailGenerators = new HashMap<>();
+
+	private static final Unpacker.Tracer TRACER = new Unpacker.Tracer() {
+		@Override
+		public void beginSection(String name) {
+			TraceCompat.beginSection(name);
+		}
+
+		@Override
+		public void endSection() {
+			TraceCompat.endSection();
+		}
+	};
+
+	private static class Result {
+
+		final int code;
+		final ExtractionMetrics metrics;
+
+		Result(int code, ExtractionMetrics metrics) {
+			this.code = code;
+			this.metrics = metrics;
+		}
+	}
+
+	/**
+	 * Links the files of a package to the objects of the {@link ContentStore}.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static class HardLinker implements ContentStore.Linker {
+
+		@Override
+		public void link(File existing, File link) throws IOException {
+			try {
+				Os.link(existing.getPath(), link.getPath());
+			} catch (ErrnoException e) {
+				throw new IOException("Cannot link " + link + " to " + existing, e);
+			}
+		}
+
+		@Override
+		public int getLinkCount(File file) throws IOException {
+			try {
+				return (int) Os.stat(file.getPath()).st_nlink;
+			} catch (ErrnoException e) {
+				throw new IOException("Cannot stat " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Reserves the blocks of large files before they are written.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static class FileAllocator implements Unpacker.Allocator {
+
+		@Override
+		public void allocate(FileDescriptor fd, long length) throws IOException {
+			try {
+				Os.posix_fallocate(fd, 0, length);
+			} catch (ErrnoException e) {
+				if (e.errno == OsConstants.ENOSPC) {
+					throw new IOException("No space left for " + length + " bytes", e);
+				}
+				// e.g. not supported by the vfat file system of an sd card, the file is simply written
+			}
+		}
+	}
+
+	/**
+	 * A started intent waiting for or running on a worker, smaller archives first.
+	 */
+	private class Job implements Runnable, Comparable<Job> {
+
+		final Intent intent;
+		final int startId;
+		final String outputPath;
+		final long size;
+		final long order = sequence.getAndIncrement();
+
+		Job(Intent intent, int startId) {
+			this.intent = intent;
+			this.startId = startId;
+			String output = intent.getStringExtra(INTENT_OUTPUT_URI);
+			this.outputPath = output != null ? Uri.parse(output).getPath() : null;
+			long size = intent.getLongExtra(INTENT_ARCHIVE_SIZE, -1);
+			this.size = size >= 0 ? size : Long.MAX_VALUE;
+		}
+
+		@Override
+		public int compareTo(Job another) {
+			if (size != another.size) {
+				return size < another.size ? -1 : 1;
+			}
+			return order < another.order ? -1 : (order == another.order ? 0 : 1);
+		}
+
+		@Override
+		public void run() {
+			if (!acquireOutput(this)) {
+				// started again once the job running for the same directory has finished
+				return;
+			}
+			try {
+				onHandleIntent(intent);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Unpacking failed", e);
+			} finally {
+				releaseOutput(this);
+				finished(startId);
+			}
+		}
+	}
+
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Start ids of the jobs not finished yet, guarded by this.
+	 */
+	private final TreeSet<Integer> running = new TreeSet<>();
+
+	private int lastStartId;
+
+	private int stoppedStartId;
+
+	/**
+	 * Jobs by their output directory, the first one is running and the others wait for it. Guarded by this.
+	 */
+	private final Map<String, ArrayDeque<Job>> outputs = new HashMap<>();
+
+	public static MetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	public static ContentStore getContentStore() {
+		return contentStore;
+	}
+
+	/**
+	 * @param store
+	 *            store keeping each distinct file content once for all packages, <code>null</code> to write every file.
+	 *            From Lollipop on the files are hard links to the stored content, before they have to be looked up with
+	 *            {@link ContentStore#resolve(File, String)}.
+	 */
+	public static void setContentStore(ContentStore store) {
+		if (store != null) {
+			if (store.getLinker() == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+				store.setLinker(new HardLinker());
+			}
+			synchronized (UnzipIntentService.class) {
+				contentStores.put(store.getDir().getAbsoluteFile(), store);
+			}
+		}
+		contentStore = store;
+	}
+
+	public static boolean isStagedInstalls() {
+		return stagedInstalls;
+	}
+
+	/**
+	 * @param staged
+	 *            whether archives are extracted next to the installed version and replace it at once, see
+	 *            {@link StagedInstall}. Readers must then find the files through
+	 *            {@link StagedInstall#getCurrentDir()}.
+	 */
+	public static void setStagedInstalls(boolean staged) {
+		stagedInstalls = staged;
+	}
+
+	public static ThumbnailGenerator getThumbnailGenerator() {
+		return thumbnailGenerator;
+	}
+
+	/**
+	 * @param generator
+	 *            creates thumbnails of the images written by every extraction, <code>null</code> for none
+	 */
+	public static void setThumbnailGenerator(ThumbnailGenerator generator) {
+		if (generator != null) {
+			synchronized (UnzipIntentService.class) {
+				thumbnailGenerators.put(generator.getCacheDir().getAbsoluteFile(), generator);
+			}
+		}
+		thumbnailGenerator = generator;
+	}
+
+	public static boolean isPreallocateFiles() {
+		return preallocateFiles;
+	}
+
+	/**
+	 * @param preallocate
+	 *            whether large files are allocated as a whole before they are written, from Lollipop on. Enabled by
+	 *            default.
+	 */
+	public static void setPreallocateFiles(boolean preallocate) {
+		preallocateFiles = preallocate;
+	}
+
+	/**
+	 * @return the current settings, recorded with every download when it is queued and applied to jobs started
+	 *         without an {@link #INTENT_INSTALL_MODE}
+	 */
+	public static InstallMode getInstallMode() {
+		ContentStore store = contentStore;
+		ThumbnailGenerator thumbnails = thumbnailGenerator;
+		return new InstallMode(stagedInstalls, preallocateFiles, store != null ? store.getDir() : null,
+				thumbnails != null ? thumbnails.getCacheDir() : null,
+				thumbnails != null ? thumbnails.getMaxSize() : ThumbnailGenerator.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @return the store of the given install mode, shared by all jobs using the same directory
+	 */
+	private static synchronized ContentStore getContentStore(InstallMode mode) {
+		File dir = mode.getContentStoreDir();
+		if (dir == null) {
+			return null;
+		}
+		ContentStore store = contentStores.get(dir);
+		if (store == null) {
+			store = new ContentStore(dir);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+				store.setLinker(new HardLinker());
+			}
+			contentStores.put(dir, store);
+		}
+		return store;
+	}
+
+	/**
+	 * @return the generator of the given install mode, shared by all jobs using the same directory
+	 */
+	private static synchronized ThumbnailGenerator getThumbnailGenerator(InstallMode mode) {
+		File dir = mode.getThumbnailDir();
+		if (dir == null) {
+			return null;
+		}
+		ThumbnailGenerator generator = thumbnailGenerators.get(dir);
+		if (generator == null) {
+			generator = new ThumbnailGenerator(dir, mode.getThumbnailSize(), ThumbnailGenerator.DEFAULT_THREAD_COUNT);
+			thumbnailGenerators.put(dir, generator);
+		}
+		return generator;
+	}
+
+	/**
+	 * Remembers the digests the archive at the given url has to match when it is extracted, until an extraction of it
+	 * succeeds. They are kept in a file, so they still apply to a download that completes after the process died.
+	 *
+	 * @param digests
+	 *            expected digests, <code>null</code> to forget them
+	 */
+	public static void setExpectedDigests(Context context, String url, IntegrityManifest digests) throws IOException {
+		File file = getDigestFile(context, url);
+		if (digests == null || digests.isEmpty()) {
+			file.delete();
+		} else {
+			digests.save(file);
+		}
+	}
+
+	/**
+	 * @return the digests the archive at the given url has to match, <code>null</code> if none are known
+	 */
+	public static IntegrityManifest getExpectedDigests(Context context, String url) throws IOException {
+		File file = getDigestFile(context, url);
+		return file.isFile() ? IntegrityManifest.load(file) : null;
+	}
+
+	private static File getDigestFile(Context context, String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			String key = ContentStore.toHex(digest.digest(url.getBytes(Charset.forName("UTF-8"))));
+			return new File(context.getFilesDir(), "digests-" + key);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the staged installations of the given directory, linking unchanged files from Lollipop on
+	 */
+	static StagedInstall getStagedInstall(File baseDir, ContentStore store) {
+		StagedInstall install = StagedInstall.getInstance(baseDir);
+		if (install.getLinker() == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			install.setLinker(new HardLinker());
+		}
+		install.setContentStore(store);
+		return install;
+	}
+
+	public static int getMaxConcurrentJobs() {
+		return maxConcurrentJobs;
+	}
+
+	/**
+	 * @param max
+	 *            maximum number of archives extracted at the same time, defaults to
+	 *            {@value #DEFAULT_MAX_CONCURRENT_JOBS}. Applies to jobs started from now on.
+	 */
+	public static void setMaxConcurrentJobs(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive: " + max);
+		}
+		maxConcurrentJobs = max;
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		int max = maxConcurrentJobs;
+		// the pool never grows beyond its core size, so all waiting jobs end up in the priority queue
+		executor = new ThreadPoolExecutor(max, max, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count;
+
+					@Override
+					public synchronized Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "UnzipIntentService-" + ++count);
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		synchronized (this) {
+			running.add(startId);
+			lastStartId = startId;
+		}
+		if (intent == null) {
+			finished(startId);
+		} else {
+			applyMaxConcurrentJobs();
+			executor.execute(new Job(intent, startId));
+		}
+		// an extraction killed with the process is started again and resumes from its checkpoint
+		return START_REDELIVER_INTENT;
+	}
+
+	@Override
+	public void onDestroy() {
+		executor.shutdownNow();
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	private void applyMaxConcurrentJobs() {
+		int max = maxConcurrentJobs;
+		if (max > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(max);
+			executor.setCorePoolSize(max);
+		} else if (max < executor.getMaximumPoolSize()) {
+			executor.setCorePoolSize(max);
+			executor.setMaximumPoolSize(max);
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if another job for the same output directory is running, the job then waits for it
+	 */
+	private synchronized boolean acquireOutput(Job job) {
+		if (job.outputPath == null) {
+			return true;
+		}
+		ArrayDeque<Job> jobs = outputs.get(job.outputPath);
+		if (jobs == null) {
+			jobs = new ArrayDeque<>();
+			outputs.put(job.outputPath, jobs);
+		}
+		if (jobs.isEmpty()) {
+			jobs.add(job);
+		} else if (jobs.peek() != job) {
+			jobs.add(job);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the next job waiting for the output directory of the given one.
+	 */
+	private synchronized void releaseOutput(Job job) {
+		if (job.outputPath == null) {
+			return;
+		}
+		ArrayDeque<Job> jobs = outputs.get(job.outputPath);
+		jobs.poll();
+		Job next = jobs.peek();
+		if (next == null) {
+			outputs.remove(job.outputPath);
+		} else if (!executor.isShutdown()) {
+			executor.execute(next);
+		}
+	}
+
+	/**
+	 * Confirms the intents of all jobs up to the oldest one still running, so only unfinished jobs are redelivered
+	 * after the death of the process, and stops the service once the last job has finished.
+	 */
+	private void finished(int startId) {
+		int done;
+		synchronized (this) {
+			running.remove(startId);
+			done = running.isEmpty() ? lastStartId : running.first() - 1;
+			if (done <= stoppedStartId) {
+				return;
+			}
+			stoppedStartId = done;
+		}
+		stopSelfResult(done);
+	}
+
+	/**
+	 * @param listener
+	 *            receives the metrics of all extractions of this process, <code>null</code> to remove it
+	 */
+	public static void setMetricsListener(MetricsListener listener) {
+		metricsListener = listener;
 	}
 
 	public static int unzip(Context context, long downloadId, Uri outputURI) {
+		return unzip(context, downloadId, outputURI, false);
+	}
+
+	/**
+	 * Extracts a completed download. Only entries that differ from the files installed by the previous extraction of
+	 * the same url into the same directory are written.
+	 *
+	 * @param deleteRemoved
+	 *            whether files of the previous version of this package that are missing in this archive are deleted
+	 */
+	public static int unzip(Context context, long downloadId, Uri outputURI, boolean deleteRemoved) {
+		return unzipDownload(context, downloadId, outputURI, deleteRemoved, getInstallMode()).code;
+	}
 
-		PendingIntent contentIntent = PendingIntent.getActivity(context, 0, new Intent(), 0);
+	/**
+	 * @return the file the archive of the given url is kept as within the output directory
+	 */
+	public static File getArchiveFile(File baseDir, String url) {
+		String name = Uri.parse(url).getLastPathSegment();
+		return new File(baseDir, name != null && !name.isEmpty() ? name : "archive.zip");
+	}
+
+	/**
+	 * Copies a finished download into the output directory, replacing the previous version of the archive at once. Only
+	 * the digest of the whole archive is checked, the entries are checked against their CRC when they are read.
+	 */
+	private static Result keepDownload(Context context, long downloadId, Uri outputURI) {
 
 		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-		NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+		ProgressNotifier.Job progress = null;
+
+		int result = RESULT_OK;
+		File baseDir = null;
+		if (outputURI != null && downloadId != -1) {
+			baseDir = new File(outputURI.getPath());
+			if (!baseDir.exists()) {
+				baseDir.mkdirs();
+			}
 
-		NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context);
-		notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
-		notificationBuilder.setContentTitle("Unpacking package");
-		notificationBuilder.setWhen(System.currentTimeMillis());
-		notificationBuilder.setContentIntent(contentIntent);
+			FileInputStream inputStream = null;
+			File temp = null;
+			try {
+				DownloadManager.Query q = new DownloadManager.Query();
+				q.setFilterById(downloadId);
+				Cursor c = downloadManager.query(q);
+				String url = null;
+				if (c.moveToFirst()) {
+					int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
+					if (status == DownloadManager.STATUS_SUCCESSFUL) {
+						url = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
+					}
+				}
+				c.close();
+				if (url == null) {
+					throw new FileNotFoundException("Download " + downloadId + " has not completed");
+				}
+
+				File archive = getArchiveFile(baseDir, url);
+				progress = ProgressNotifier.getInstance(context).start(archive.getName());
+
+				ParcelFileDescriptor pfd = downloadManager.openDownloadedFile(downloadId);
+				inputStream = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+				FileChannel channel = inputStream.getChannel();
+				String contentType = downloadManager.getMimeTypeForDownloadedFile(downloadId);
+				if (ArchiveExtractors.find(contentType, channel) != ArchiveExtractors.ZIP) {
+					throw new ZipException("Only zip archives can be read on demand");
+				}
+
+				IntegrityManifest expected = getExpectedDigests(context, url);
+				temp = new File(baseDir, "." + archive.getName() + ".tmp");
+				copyArchive(channel, temp, expected != null ? expected.getArchiveDigest() : null, progress);
+				// fail now if the central directory is broken, not when the first entry is read
+				new ArchiveIndex(temp).close();
+				if (!temp.renameTo(archive)) {
+					throw new IOException("Cannot replace " + archive);
+				}
+				temp = null;
+				if (expected != null) {
+					setExpectedDigests(context, url, null);
+				}
+				Log.d(TAG, "Kept download " + downloadId + " as " + archive);
+			} catch (Exception e) {
+				Log.e(TAG,e.getLocalizedMessage(), e);
+				result = RESULT_ERROR;
+			} finally {
+				if (temp != null) {
+					temp.delete();
+				}
+				if (inputStream != null) {
+					try {
+						inputStream.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		} else {
+			result = RESULT_CANCELED;
+		}
+
+		return finish(context, baseDir, result, null, progress, new MediaScanBatch(context, MEDIA_MIME_TYPE));
+	}
+
+	/**
+	 * Copies the archive and syncs the copy. The bytes are only passed through the heap if they have to be hashed.
+	 */
+	private static void copyArchive(FileChannel channel, File target, String digest, UnpackObserver progress)
+			throws IOException {
+		long size = channel.size();
+		progress.onProgress(0, size);
+		MessageDigest archiveDigest = null;
+		if (digest != null) {
+			try {
+				archiveDigest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			FileChannel targetChannel = out.getChannel();
+			long position = 0;
+			ByteBuffer buffer = archiveDigest != null ? ByteBuffer.allocate(65536) : null;
+			while (position < size) {
+				long count;
+				if (buffer != null) {
+					buffer.clear();
+					count = channel.read(buffer, position);
+					if (count > 0) {
+						buffer.flip();
+						archiveDigest.update(buffer.array(), 0, buffer.limit());
+						while (buffer.hasRemaining()) {
+							targetChannel.write(buffer);
+						}
+					}
+				} else {
+					count = channel.transferTo(position, Math.min(8 * 1024 * 1024, size - position), targetChannel);
+				}
+				if (count <= 0) {
+					throw new IOException("Unexpected end of archive");
+				}
+				position += count;
+				progress.onProgress(position, size);
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (archiveDigest != null && !digest.equals(ContentStore.toHex(archiveDigest.digest()))) {
+			throw new ZipException("SHA-256 mismatch for archive");
+		}
+	}
+
+	private static Result unzipDownload(Context context, long downloadId, Uri outputURI, boolean deleteRemoved,
+			InstallMode mode) {
+
+		DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+		ProgressNotifier.Job progress = null;
+		MediaScanBatch mediaScan = new MediaScanBatch(context, MEDIA_MIME_TYPE);
+		Unpacker unpacker = null;
 
 		int result = RESULT_OK;
 		File baseDir = null;
@@ -64,92 +751,67 @@ public class UnzipIntentService extends IntentService {
 				baseDir.mkdirs();
 			}
 
-			ZipInputStream inputStream = null;
+			ContentStore store = getContentStore(mode);
+			StagedInstall install = mode.isStaged() ? getStagedInstall(baseDir, store) : null;
+			File stagingDir = null;
+			FileInputStream inputStream = null;
 			try {
 
 				DownloadManager.Query q = new DownloadManager.Query();
 				q.setFilterById(downloadId);
 				Cursor c = downloadManager.query(q);
 				String title = "Unpacking ...";
-				int totalSize = 0;
+				String url = null;
 				if (c.moveToFirst()) {
 					int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
 					if (status == DownloadManager.STATUS_SUCCESSFUL) {
 						// process download
 						title = c.getString(c.getColumnIndex(DownloadManager.COLUMN_TITLE));
-
-						totalSize = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-						// get other required data by changing the constant passed to getColumnIndex
+						url = c.getString(c.getColumnIndex(DownloadManager.COLUMN_URI));
 					}
 				}
 				c.close();
 
-				// Open the ZipInputStream
-				ParcelFileDescriptor pfd = downloadManager.openDownloadedFile(downloadId);
+				progress = ProgressNotifier.getInstance(context).start(title);
 
-				inputStream = new ZipInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
-				int bitsread = 0;
-				// Loop through all the files and folders
-				for (ZipEntry entry = inputStream.getNextEntry(); entry != null; entry = inputStream.getNextEntry()) {
-
-					bitsread += entry.getCompressedSize();
-
-					notificationBuilder.setContentTitle(title);
-					notificationBuilder.setContentText(entry.getName());
-					notificationBuilder.setProgress(totalSize, bitsread, true);
-
-					notificationManager.notify(UNZIP_ID, notificationBuilder.build());
-
-					Log.d(TAG, "Extracting: " + entry.getName() + "...");
-
-					File innerFile = new File(baseDir, entry.getName());
-					// if (innerFile.exists()) {
-					// innerFile.delete();
-					// }
-
-					// Check if it is a folder
-					if (entry.isDirectory()) {
-						// Its a folder, create that folder
-						innerFile.mkdirs();
-					} else {
-						// Create a file output stream
-						BufferedOutputStream bufferedOutputStream = null;
-						try {
-							if (!innerFile.getParentFile().canWrite()) {
-								result = RESULT_ERROR;
-								break;
-							}
-							FileOutputStream outputStream = new FileOutputStream(innerFile.getAbsolutePath());
-							final int BUFFER = 2048;
-
-							// Buffer the output to the file
-							bufferedOutputStream = new BufferedOutputStream(outputStream, BUFFER);
-
-							// Write the contents
-							int count = 0;
-							byte[] data = new byte[BUFFER];
-							while ((count = inputStream.read(data, 0, BUFFER)) != -1) {
-								bufferedOutputStream.write(data, 0, count);
-							}
-
-							// Flush and close the buffers
-							bufferedOutputStream.flush();
-							bufferedOutputStream.close();
-
-						} finally {
-							if (bufferedOutputStream != null)
-								bufferedOutputStream.close();
-						}
-					}
+				if (install != null) {
+					// the staging directory survives the death of the process, so the checkpoint stays valid
+					stagingDir = install.stage("download-" + downloadId);
+				}
+				unpacker = createUnpacker(baseDir, stagingDir != null ? stagingDir : baseDir,
+						url != null ? url : "download-" + downloadId, deleteRemoved, mode, store, progress, mediaScan);
+				unpacker.setCheckpointFile(new File(context.getFilesDir(), "unzip-" + downloadId + ".checkpoint"));
+				if (url != null) {
+					unpacker.setExpectedDigests(getExpectedDigests(context, url));
+				}
 
-					// Close the current entry
-					inputStream.closeEntry();
+				// Open the downloaded archive, the unpacker only uses positional reads on its channel
+				ParcelFileDescriptor pfd = downloadManager.openDownloadedFile(downloadId);
+				inputStream = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+				unpacker.extract(inputStream.getChannel(), downloadManager.getMimeTypeForDownloadedFile(downloadId));
+				Log.d(TAG, "Unpacked download " + downloadId + ": " + unpacker.getStatistics());
+
+				if (stagingDir != null) {
+					File staged = stagingDir;
+					stagingDir = null;
+					commit(install, staged, mode, mediaScan);
+				}
+				if (url != null && unpacker.getExpectedDigests() != null) {
+					setExpectedDigests(context, url, null);
 				}
-				inputStream.close();
+			} catch (CancellationException e) {
+				result = RESULT_CANCELED;
+			} catch (InsufficientSpaceException e) {
+				// detected before anything was written
+				Log.w(TAG, e.getMessage());
+				result = RESULT_ERROR;
 			} catch (Exception e) {
 				Log.e(TAG,e.getLocalizedMessage(), e);
 				result = RESULT_ERROR;
 			} finally {
+				if (stagingDir != null) {
+					install.abort(stagingDir);
+				}
 				if (inputStream != null) {
 					try {
 						inputStream.close();
@@ -162,80 +824,249 @@ public class UnzipIntentService extends IntentService {
 			result = RESULT_CANCELED;
 		}
 
-		switch (result) {
-		case RESULT_OK:
-			notificationBuilder.setContentTitle("Unpacking completed");
-			notificationBuilder.setContentText(context.getString(R.string.download_finished));
-			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download_done);
-			notificationBuilder.setProgress(100, 100, false);
-			notificationManager.notify(UNZIP_ID, notificationBuilder.build());
-			notificationManager.cancel(UNZIP_ID);
+		return finish(context, baseDir, result, unpacker, progress, mediaScan);
+	}
+
+	public static int unzip(Context context, String sourceURL, Uri outputURI) {
+		return unzip(context, sourceURL, outputURI, false);
+	}
+
+	/**
+	 * Downloads the archive at the given http(s) url and extracts it while the bytes arrive, without storing the
+	 * archive itself anywhere.
+	 *
+	 * @param deleteRemoved
+	 *            whether files of the previous version of this package that are missing in this archive are deleted
+	 */
+	public static int unzip(Context context, String sourceURL, Uri outputURI, boolean deleteRemoved) {
+		return unzipStream(context, sourceURL, outputURI, deleteRemoved, getInstallMode()).code;
+	}
+
+	private static Result unzipStream(Context context, String sourceURL, Uri outputURI, boolean deleteRemoved,
+			InstallMode mode) {
+
+		ProgressNotifier.Job progress = null;
+		MediaScanBatch mediaScan = new MediaScanBatch(context, MEDIA_MIME_TYPE);
+		Unpacker unpacker = null;
+
+		int result = RESULT_OK;
+		File baseDir = null;
+		if (outputURI != null && sourceURL != null) {
+			baseDir = new File(outputURI.getPath());
+			if (!baseDir.exists()) {
+				baseDir.mkdirs();
+			}
+
+			ContentStore store = getContentStore(mode);
+			StagedInstall install = mode.isStaged() ? getStagedInstall(baseDir, store) : null;
+			File stagingDir = null;
+			HttpArchiveStream in = null;
+			try {
+				in = HttpArchiveStream.open(sourceURL);
+
+				progress = ProgressNotifier.getInstance(context).start(Uri.parse(sourceURL).getLastPathSegment());
 
-			MediaScannerWrapper wrapper = new MediaScannerWrapper(context.getApplicationContext(),
-					baseDir.getAbsolutePath(), "image/*");
-			wrapper.scan();
+				if (install != null) {
+					stagingDir = install.stage(sourceURL);
+				}
+				unpacker = createUnpacker(baseDir, stagingDir != null ? stagingDir : baseDir, sourceURL, deleteRemoved,
+						mode, store, progress, mediaScan);
+				unpacker.setExpectedDigests(getExpectedDigests(context, sourceURL));
+				unpacker.extract(in, in.getContentType());
+				Log.d(TAG, "Unpacked " + sourceURL + ": " + unpacker.getStatistics());
 
-			break;
-		case RESULT_CANCELED:
-			notificationManager.cancel(UNZIP_ID);
-			break;
-		case RESULT_ERROR:
-			notificationBuilder.setContentTitle("Unpacking failed");
-			notificationBuilder.setContentText(context.getString(R.string.download_error));
-			notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
-			notificationBuilder.setProgress(100, 100, false);
-			notificationManager.notify(UNZIP_ID, notificationBuilder.build());
-			break;
+				if (stagingDir != null) {
+					File staged = stagingDir;
+					stagingDir = null;
+					commit(install, staged, mode, mediaScan);
+				}
+				if (unpacker.getExpectedDigests() != null) {
+					setExpectedDigests(context, sourceURL, null);
+				}
+			} catch (CancellationException e) {
+				result = RESULT_CANCELED;
+			} catch (Exception e) {
+				Log.e(TAG,e.getLocalizedMessage(), e);
+				result = RESULT_ERROR;
+			} finally {
+				if (stagingDir != null) {
+					install.abort(stagingDir);
+				}
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		} else {
+			result = RESULT_CANCELED;
 		}
 
-		return result;
+		return finish(context, baseDir, result, unpacker, progress, mediaScan);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see android.app.IntentService#onHandleIntent(android.content.Intent)
+	private static void commit(StagedInstall install, File stagingDir, InstallMode mode, MediaScanBatch mediaScan)
+			throws IOException {
+		ThumbnailGenerator thumbnails = getThumbnailGenerator(mode);
+		if (thumbnails != null) {
+			// images looked at while the directory is renamed wait for the new name
+			thumbnails.beginRelocate(stagingDir);
+		}
+		boolean committed = false;
+		try {
+			install.commit(stagingDir);
+			committed = true;
+		} finally {
+			if (thumbnails != null) {
+				thumbnails.relocate(stagingDir, committed ? install.getCurrentDir() : null);
+			}
+		}
+		mediaScan.relocate(stagingDir, install.getCurrentDir());
+		Log.d(TAG, "Installed " + install.getCurrentDir());
+	}
+
+	/**
+	 * @param baseDir
+	 *            output directory of the package
+	 * @param targetDir
+	 *            directory to extract into, the staging directory of staged installs
+	 * @param packageKey
+	 *            url of the archive, each package installed into the directory has a manifest of its own
+	 * @param store
+	 *            content store of the install mode
 	 */
-	@Override
-	protected void onHandleIntent(Intent intent) {
-		long downloadId = intent.getLongExtra(INTENT_DOWNLOAD_ID, -1);
-		Uri outputURI = Uri.parse(intent.getStringExtra(INTENT_OUTPUT_URI));
+	private static Unpacker createUnpacker(File baseDir, File targetDir, String packageKey, boolean deleteRemoved,
+			InstallMode mode, ContentStore store, UnpackObserver progress, UnpackObserver mediaScan) {
+		Unpacker unpacker = new Unpacker(targetDir);
+		unpacker.addObserver(progress);
+		unpacker.addObserver(mediaScan);
+		ThumbnailGenerator thumbnails = getThumbnailGenerator(mode);
+		if (thumbnails != null) {
+			unpacker.addObserver(thumbnails.observe(baseDir));
+		}
+		unpacker.setManifestFile(InstallManifest.getFile(targetDir, packageKey));
+		unpacker.setDeleteRemoved(deleteRemoved);
+		unpacker.setTracer(TRACER);
+		unpacker.setContentStore(store);
+		if (mode.isPreallocate() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			unpacker.setAllocator(new FileAllocator());
+		}
+		return unpacker;
+	}
 
-		int result = unzip(this, downloadId, outputURI);
+	private static Result finish(Context context, File baseDir, int result, Unpacker unpacker,
+			ProgressNotifier.Job progress, MediaScanBatch mediaScan) {
+		ExtractionMetrics metrics = unpacker != null ? unpacker.getMetrics() : null;
 
-		Intent broadcastIntent = new Intent(ACTION_UNZIP_COMPLETE);
-		broadcastIntent.putExtra(INTENT_RESULT, result);
-		sendBroadcast(broadcastIntent);
+		long start = System.nanoTime();
+		if (progress != null) {
+			progress.finish(result);
+		} else if (result == RESULT_ERROR) {
+			// failed before the extraction started
+			ProgressNotifier.getInstance(context).notifyFailed();
+		}
+		if (metrics != null) {
+			metrics = metrics.withPhase(ExtractionMetrics.Phase.NOTIFY, System.nanoTime() - start);
+		}
 
+		if (result == RESULT_OK) {
+			// only the files actually written, unchanged ones are already known to the media store. The worker does
+			// not wait for the scanner, the package is usable already.
+			MetricsReport report = metrics != null ? new MetricsReport(baseDir, result, metrics, mediaScan) : null;
+			if (report != null) {
+				mainHandler.postDelayed(report.timeout, MEDIA_SCAN_TIMEOUT);
+			}
+			mediaScan.scan(report);
+		} else if (metrics != null) {
+			reportMetrics(baseDir, result, metrics);
+		}
+		return new Result(result, metrics);
 	}
 
-    static class MediaScannerWrapper implements MediaScannerConnection.MediaScannerConnectionClient {
+	private static void reportMetrics(File baseDir, int result, ExtractionMetrics metrics) {
+		Log.d(TAG, "Metrics of " + baseDir + ": " + metrics);
+		MetricsListener listener = metricsListener;
+		if (listener != null) {
+			listener.onExtractionFinished(baseDir, result, metrics);
+		}
+	}
 
-        private MediaScannerConnection mConnection;
-        private String mPath;
-        private String mMimeType;
+	/**
+	 * Reports the metrics of an extraction with the duration of its media scan once the scan has completed, or without
+	 * it once the scan is taking too long.
+	 */
+	private static class MetricsReport implements Runnable {
 
-        // filePath - where to scan;
-        // mime type of media to scan i.e. "image/jpeg".
-        // use "*/*" for any media
-        public MediaScannerWrapper(Context ctx, String filePath, String mime) {
-            mPath = filePath;
-            mMimeType = mime;
-            mConnection = new MediaScannerConnection(ctx, this);
-        }
+		private final File baseDir;
+		private final int result;
+		private final ExtractionMetrics metrics;
+		private final MediaScanBatch mediaScan;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean reported = new AtomicBoolean();
 
-        // do the scanning
-        public void scan() {
-            mConnection.connect();
-        }
+		final Runnable timeout = new Runnable() {
+			@Override
+			public void run() {
+				if (reported.compareAndSet(false, true)) {
+					Log.w(TAG, "Media scan of " + mediaScan.size() + " files still running");
+					reportMetrics(baseDir, result, metrics);
+				}
+			}
+		};
 
-        // start the scan when scanner is ready
-        public void onMediaScannerConnected() {
-            mConnection.scanFile(mPath, mMimeType);
-        }
+		MetricsReport(File baseDir, int result, ExtractionMetrics metrics, MediaScanBatch mediaScan) {
+			this.baseDir = baseDir;
+			this.result = result;
+			this.metrics = metrics;
+			this.mediaScan = mediaScan;
+		}
+
+		@Override
+		public void run() {
+			if (reported.compareAndSet(false, true)) {
+				mainHandler.removeCallbacks(timeout);
+				reportMetrics(baseDir, result,
+						metrics.withPhase(ExtractionMetrics.Phase.MEDIA_SCAN, System.nanoTime() - start));
+			}
+		}
+	}
+
+	/**
+	 * Runs one job on a worker thread, several jobs may run at the same time.
+	 */
+	protected void onHandleIntent(Intent intent) {
+		Uri outputURI = Uri.parse(intent.getStringExtra(INTENT_OUTPUT_URI));
+
+		boolean deleteRemoved = intent.getBooleanExtra(INTENT_DELETE_REMOVED, false);
+		// a redelivered intent runs in a new process, where the settings are back to their defaults
+		InstallMode mode = (InstallMode) intent.getSerializableExtra(INTENT_INSTALL_MODE);
+		if (mode == null) {
+			mode = getInstallMode();
+		}
+
+		Intent broadcastIntent = new Intent(ACTION_UNZIP_COMPLETE);
+		Result result;
+		if (intent.hasExtra(INTENT_SOURCE_URL)) {
+			String sourceURL = intent.getStringExtra(INTENT_SOURCE_URL);
+			result = unzipStream(this, sourceURL, outputURI, deleteRemoved, mode);
+			broadcastIntent.putExtra(INTENT_SOURCE_URL, sourceURL);
+		} else {
+			long downloadId = intent.getLongExtra(INTENT_DOWNLOAD_ID, -1);
+			if (intent.getBooleanExtra(INTENT_KEEP_ARCHIVE, false)) {
+				result = keepDownload(this, downloadId, outputURI);
+			} else {
+				result = unzipDownload(this, downloadId, outputURI, deleteRemoved, mode);
+			}
+			broadcastIntent.putExtra(INTENT_DOWNLOAD_ID, downloadId);
+			DownloadBatch.onExtractionFinished(downloadId, result.code);
+		}
 
-        public void onScanCompleted(String path, Uri uri) {
-            mConnection.disconnect();
-        }
-    }
+		broadcastIntent.putExtra(INTENT_RESULT, result.code);
+		if (result.metrics != null) {
+			broadcastIntent.putExtra(INTENT_METRICS, result.metrics);
+		}
+		sendBroadcast(broadcastIntent);
+
+	}
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access reader for zip archives. The entry list is taken from the central directory at the end of the file
+ * and the entry data is read with positional reads, so entries can be opened independently and concurrently.
+ */
+final class ZipCentralDirectory {
+
+	private static final int LOC_SIG = 0x04034b50;
+	private static final int CEN_SIG = 0x02014b50;
+	private static final int END_SIG = 0x06054b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+	private static final int LOC_HEADER = 30;
+	private static final int CEN_HEADER = 46;
+	private static final int END_HEADER = 22;
+	private static final int ZIP64_END_HEADER = 56;
+	private static final int ZIP64_LOCATOR = 20;
+	private static final int MAX_COMMENT = 0xFFFF;
+
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	private static final int FLAG_ENCRYPTED = 0x0001;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private ZipCentralDirectory() {
+	}
+
+	static List<ArchiveEntry> read(FileChannel channel) throws IOException {
+		long fileSize = channel.size();
+		int tailSize = (int) Math.min(fileSize, END_HEADER + MAX_COMMENT);
+		ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+
+		int end = -1;
+		for (int i = tailSize - END_HEADER; i >= 0; i--) {
+			if (tail.getInt(i) == END_SIG) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new ZipException("End of central directory not found");
+		}
+
+		long count = tail.getShort(end + 10) & 0xFFFF;
+		long cenSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long cenOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+		if (count == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+			long locatorPosition = fileSize - tailSize + end - ZIP64_LOCATOR;
+			if (locatorPosition >= 0) {
+				ByteBuffer locator = read(channel, locatorPosition, ZIP64_LOCATOR);
+				if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+					ByteBuffer zip64End = read(channel, locator.getLong(8), ZIP64_END_HEADER);
+					if (zip64End.getInt(0) != ZIP64_END_SIG) {
+						throw new ZipException("Invalid zip64 end of central directory");
+					}
+					count = zip64End.getLong(32);
+					cenSize = zip64End.getLong(40);
+					cenOffset = zip64End.getLong(48);
+				}
+			}
+		}
+
+		if (cenSize > Integer.MAX_VALUE || cenOffset + cenSize > fileSize) {
+			throw new ZipException("Invalid central directory");
+		}
+
+		ByteBuffer cen = read(channel, cenOffset, (int) cenSize);
+		List<ArchiveEntry> entries = new ArrayList<>((int) Math.min(count, 0xFFFF));
+		int pos = 0;
+		for (long i = 0; i < count; i++) {
+			if (pos + CEN_HEADER > cenSize || cen.getInt(pos) != CEN_SIG) {
+				throw new ZipException("Invalid central directory header");
+			}
+			int flags = cen.getShort(pos + 8) & 0xFFFF;
+			int method = cen.getShort(pos + 10) & 0xFFFF;
+			long crc = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+			long compressedSize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+			long size = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+			long offset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+			if (pos + CEN_HEADER + nameLength + extraLength + commentLength > cenSize) {
+				throw new ZipException("Invalid central directory header");
+			}
+
+			String name = new String(cen.array(), pos + CEN_HEADER, nameLength, UTF_8);
+			if ((flags & FLAG_ENCRYPTED) != 0) {
+				throw new ZipException("Encrypted entries are not supported: " + name);
+			}
+
+			if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || offset == ZIP64_MAGIC) {
+				int extra = pos + CEN_HEADER + nameLength;
+				int extraEnd = extra + extraLength;
+				while (extra + 4 <= extraEnd) {
+					int id = cen.getShort(extra) & 0xFFFF;
+					int length = cen.getShort(extra + 2) & 0xFFFF;
+					if (id == ZIP64_EXTRA_ID) {
+						int field = extra + 4;
+						int fieldEnd = Math.min(field + length, extraEnd);
+						if (size == ZIP64_MAGIC) {
+							size = readZip64Field(cen, field, fieldEnd, name);
+							field += 8;
+						}
+						if (compressedSize == ZIP64_MAGIC) {
+							compressedSize = readZip64Field(cen, field, fieldEnd, name);
+							field += 8;
+						}
+						if (offset == ZIP64_MAGIC) {
+							offset = readZip64Field(cen, field, fieldEnd, name);
+						}
+						break;
+					}
+					extra += 4 + length;
+				}
+			}
+
+			entries.add(new ArchiveEntry(name, method, size, compressedSize, crc, offset));
+			pos += CEN_HEADER + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads one 8 byte value of a zip64 extra field, which must fit into the declared length of the field.
+	 */
+	private static long readZip64Field(ByteBuffer cen, int field, int fieldEnd, String name) throws ZipException {
+		if (field + 8 > fieldEnd) {
+			throw new ZipException("Invalid zip64 extra field for " + name);
+		}
+		return cen.getLong(field);
+	}
+
+	/**
+	 * @return the position of the first data byte of the given entry, located behind its local file header
+	 */
+	static long getDataOffset(FileChannel channel, ArchiveEntry entry) throws IOException {
+		ByteBuffer header = read(channel, entry.getOffset(), LOC_HEADER);
+		if (header.getInt(0) != LOC_SIG) {
+			throw new ZipException("Invalid local header for " + entry.getName());
+		}
+		return entry.getOffset() + LOC_HEADER + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+	}
+
+	/**
+	 * Opens a stream returning the uncompressed content of the given entry. The stream does not verify the checksum.
+	 * Deflated entries borrow their inflater and input buffer from the given pool until the stream is closed.
+	 */
+	static InputStream openEntry(FileChannel channel, ArchiveEntry entry, BufferPool bufferPool) throws IOException {
+		InputStream raw = new ChannelInputStream(channel, getDataOffset(channel, entry), entry.getCompressedSize());
+		switch (entry.getMethod()) {
+		case ZipEntry.STORED:
+			return raw;
+		case ZipEntry.DEFLATED:
+			return new EntryInflaterInputStream(raw, bufferPool, entry.getCompressedSize());
+		default:
+			throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException("Unexpected end of archive");
+			}
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Inflates raw deflate data with an inflater and input buffer borrowed from a {@link BufferPool}, both are given
+	 * back on close. Like the stream of {@link java.util.zip.ZipFile} it feeds one dummy byte after the end of the
+	 * input, which the nowrap mode of zlib may need to recognize the end of the stream.
+	 */
+	private static class EntryInflaterInputStream extends InputStream {
+
+		private final InputStream in;
+		private final BufferPool bufferPool;
+		private Inflater inflater;
+		private byte[] buffer;
+		private boolean eof;
+
+		EntryInflaterInputStream(InputStream in, BufferPool bufferPool, long compressedSize) {
+			this.in = in;
+			this.bufferPool = bufferPool;
+			this.inflater = bufferPool.acquireInflater();
+			this.buffer = bufferPool.acquire(compressedSize);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (inflater == null) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (true) {
+					int count = inflater.inflate(b, off, len);
+					if (count > 0) {
+						return count;
+					}
+					if (inflater.finished() || inflater.needsDictionary()) {
+						return -1;
+					}
+					if (inflater.needsInput()) {
+						fill();
+					}
+				}
+			} catch (DataFormatException e) {
+				String message = e.getMessage();
+				throw new ZipException(message != null ? message : "Invalid zip data format");
+			}
+		}
+
+		private void fill() throws IOException {
+			if (eof) {
+				throw new EOFException("Unexpected end of zip entry");
+			}
+			int count = in.read(buffer, 0, buffer.length);
+			if (count == -1) {
+				buffer[0] = 0;
+				count = 1;
+				eof = true;
+			}
+			inflater.setInput(buffer, 0, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (inflater != null) {
+				bufferPool.releaseInflater(inflater);
+				bufferPool.release(buffer);
+				inflater = null;
+				buffer = null;
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 Gandulf Kohlweiss
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gandulf.guilib.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads zip archives sequentially through their local headers. A downloaded zip file is better extracted through its
+ * central directory, which the {@link Unpacker} does by itself.
+ */
+final class ZipExtractor implements ArchiveExtractor {
+
+	@Override
+	public String getName() {
+		return "zip";
+	}
+
+	@Override
+	public boolean matchesMagic(byte[] header, int length) {
+		// local file header, or the end record of an empty archive
+		return length >= 4 && header[0] == 'P' && header[1] == 'K'
+				&& ((header[2] == 3 && header[3] == 4) || (header[2] == 5 && header[3] == 6));
+	}
+
+	@Override
+	public boolean matchesContentType(String contentType) {
+		return contentType.equals("application/zip") || contentType.equals("application/x-zip")
+				|| contentType.equals("application/x-zip-compressed");
+	}
+
+	@Override
+	public EntryReader open(InputStream in) {
+		final ZipInputStream zip = new ZipInputStream(in);
+		return new EntryReader() {
+
+			private ZipEntry current;
+
+			@Override
+			public ArchiveEntry nextEntry() throws IOException {
+				current = zip.getNextEntry();
+				if (current == null) {
+					return null;
+				}
+				return new ArchiveEntry(current.getName(), current.getMethod(), current.getSize(),
+						ArchiveEntry.UNKNOWN, ArchiveEntry.UNKNOWN, ArchiveEntry.UNKNOWN);
+			}
+
+			@Override
+			public InputStream getContent() {
+				return zip;
+			}
+
+			@Override
+			public ArchiveEntry finishEntry() throws IOException {
+				// ZipInputStream verifies the checksum itself, sizes are only known for sure after the data
+				zip.closeEntry();
+				return new ArchiveEntry(current.getName(), current.getMethod(), current.getSize(),
+						current.getCompressedSize(), current.getCrc(), ArchiveEntry.UNKNOWN);
+			}
+
+			@Override
+			public void close() throws IOException {
+				zip.close();
+			}
+		};
+	}
+}